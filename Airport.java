@@ -1,15 +1,72 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 
+/**
+ * Safe for use by many threads. Route searches run on an immutable snapshot of
+ * the graph and seats are booked on a lock free ledger; only changes to the
+ * graph hold the writer lock. A query whose route was filled up or removed by
+ * a concurrent change searches again.
+ */
 public class Airport extends AirportBase {
+    private final ReentrantLock lock = new ReentrantLock(); // guards the adjacency map and the snapshot
     private final AdjacencyMap<TerminalBase, ShuttleBase> adjacencyMap;
     private final Map<TerminalBase, AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase>> terminalVertices;
     private final Map<ShuttleBase, AdjacencyMap<TerminalBase, ShuttleBase>.Edge<ShuttleBase>> shuttleEdges;
-    private final Map<ShuttleBase, Integer> shuttleCapacity;
+    private final SeatLedger seats = new SeatLedger();
+    private volatile CompactGraph snapshot; // routing snapshot, rebuilt lazily after the graph changes
+    private int nextShuttleId;
+    private volatile Routing routing = Routing.DIJKSTRA;
+    private volatile int parallelTerminals = DeltaStepping.MIN_TERMINALS; // smallest airport for DELTA_STEPPING
+    private volatile LandmarkIndex landmarks; // A* lower bounds, built on the first ALT query
+    private volatile ContractionHierarchy hierarchy; // built on the first CONTRACTION_HIERARCHY query
+    private volatile RouteTable routeTable; // built on the first ROUTE_TABLE query
+    private volatile RouteCache routeCache; // off unless enabled
+    private volatile ShortestPathTrees trees; // off unless enabled
+    private volatile AlternativeRoutes alternatives; // off unless enabled
+    private final Timetable timetable = new Timetable();
+    private final RoutingMetrics metrics = new RoutingMetrics();
+    private CompactGraph unmaterialized; // the snapshot an airport was loaded with, until the map is built from it
+    private int batchDepth; // nesting of batchUpdate calls, guarded by the lock
+    private final IntStack batchClosed = new IntStack(); // shuttles closed by the running batch
+    private boolean batchRemovedTerminals;
+    private long graphVersion; // bumped whenever terminals or shuttles are added or terminals removed
 
     /**
      * Creates a new AirportBase instance with the given capacity.
@@ -18,45 +75,160 @@ public class Airport extends AirportBase {
      *                 (same for all shuttles)
      */
     public Airport(int capacity) {
+        this(capacity, 0, 0);
+    }
+
+    /**
+     * Creates an airport sized for the given number of terminals and shuttles,
+     * so that adding them does not grow its maps
+     *
+     * @param capacity          capacity of the airport shuttles
+     * @param expectedTerminals the number of terminals expected
+     * @param expectedShuttles  the number of shuttles expected
+     */
+    public Airport(int capacity, int expectedTerminals, int expectedShuttles) {
         super(capacity);
         adjacencyMap = new AdjacencyMap<>();
-        terminalVertices = new HashMap<>(); // represents vertices
-        shuttleEdges = new HashMap<>();
-        shuttleCapacity = new HashMap<>();
+        terminalVertices = new HashMap<>(hashCapacity(expectedTerminals)); // represents vertices
+        shuttleEdges = new HashMap<>(hashCapacity(expectedShuttles));
+    }
+
+    private static int hashCapacity(int expected) {
+        return Math.max(16, (int) (expected / 0.75f) + 1);
+    }
+
+    /**
+     * Loads an airport from a topology file in the format read by
+     * TopologyReader. The file is scanned once to count the terminals and
+     * shuttles so that every map is allocated at its final size, then parsed
+     * into the adjacency map in a single pass; the routing snapshot and version
+     * are updated once at the end rather than per shuttle.
+     *
+     * @param file     the topology file
+     * @param capacity capacity of the airport shuttles
+     * @return the airport
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static Airport load(File file, int capacity) throws IOException {
+        int terminalCount = 0;
+        int shuttleCount = 0;
+        try (var reader = new TopologyReader(file)) {
+            for (int type = reader.nextRecord(); type >= 0; type = reader.nextRecord()) {
+                if (type == 'T') {
+                    terminalCount++;
+                } else if (type == 'S') {
+                    shuttleCount++;
+                } else {
+                    throw reader.error("unknown record '" + (char) type + "'");
+                }
+                reader.skipLine();
+            }
+        }
+
+        var airport = new Airport(capacity, terminalCount, shuttleCount);
+        var vertices = new ArrayList<AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase>>(terminalCount);
+        airport.lock.lock();
+        try (var reader = new TopologyReader(file)) {
+            for (int type = reader.nextRecord(); type >= 0; type = reader.nextRecord()) {
+                if (type == 'T') {
+                    var terminal = new Terminal(reader.nextToken(), reader.nextInt());
+                    var vertex = airport.adjacencyMap.insertVertex(terminal);
+                    airport.terminalVertices.put(terminal, vertex);
+                    vertices.add(vertex);
+                } else {
+                    int origin = reader.nextInt();
+                    int destination = reader.nextInt();
+                    int time = reader.nextInt();
+                    if (origin < 0 || origin >= vertices.size() || destination < 0 || destination >= vertices.size()) {
+                        throw reader.error("no such terminal");
+                    }
+                    if (origin == destination) {
+                        throw reader.error("shuttle from a terminal to itself");
+                    }
+                    var u = vertices.get(origin);
+                    var v = vertices.get(destination);
+                    var shuttle = new Shuttle(u.getElement(), v.getElement(), time, airport.nextShuttleId);
+                    var edge = airport.adjacencyMap.insertEdge(u, v, shuttle);
+                    if (edge == null) {
+                        throw reader.error("duplicate shuttle");
+                    }
+                    airport.shuttleEdges.put(shuttle, edge);
+                    airport.seats.open(airport.nextShuttleId++, capacity);
+                }
+                reader.endRecord();
+            }
+            airport.structureChanged();
+        } finally {
+            airport.lock.unlock();
+        }
+        return airport;
     }
 
 
     @Override
     public TerminalBase opposite(ShuttleBase shuttle, TerminalBase terminal) {
-        var vertex = terminalVertices.get(terminal);
-        var edge = shuttleEdges.get(shuttle);
+        lock.lock();
+        try {
+            materialize();
+            var vertex = terminalVertices.get(terminal);
+            var edge = shuttleEdges.get(shuttle);
 
-        var oppositeVertex = adjacencyMap.opposite(vertex, edge);
+            var oppositeVertex = adjacencyMap.opposite(vertex, edge);
 
-        return oppositeVertex == null ? null : oppositeVertex.getElement();
+            return oppositeVertex == null ? null : oppositeVertex.getElement();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public TerminalBase insertTerminal(TerminalBase terminal) {
         if (terminal != null) {
-            var vertex = adjacencyMap.insertVertex(terminal);
-            terminalVertices.put(terminal, vertex);
-            return vertex.getElement();
+            lock.lock();
+            try {
+                materialize();
+                if (terminalVertices.containsKey(terminal)) {
+                    return terminal; // already added
+                }
+                var vertex = adjacencyMap.insertVertex(terminal);
+                terminalVertices.put(terminal, vertex);
+                structureChanged();
+                return vertex.getElement();
+            } finally {
+                lock.unlock();
+            }
         }
 
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @return the new shuttle, or null if a terminal is not in the airport,
+     * both are the same or a shuttle already connects them
+     */
     @Override
     public ShuttleBase insertShuttle(TerminalBase origin, TerminalBase destination, int time) {
         if (origin != null && destination != null) {
-            var originVertex = terminalVertices.get(origin);
-            var destinationVertex = terminalVertices.get(destination);
-            ShuttleBase shuttle = new Shuttle(origin, destination, time);
-            var edge = adjacencyMap.insertEdge(originVertex, destinationVertex, shuttle);
-            shuttleEdges.put(shuttle, edge);
-            shuttleCapacity.put(shuttle, this.getCapacity());
-            return shuttle;
+            lock.lock();
+            try {
+                materialize();
+                var originVertex = terminalVertices.get(origin);
+                var destinationVertex = terminalVertices.get(destination);
+                if (originVertex == null || destinationVertex == null || originVertex == destinationVertex
+                        || adjacencyMap.getEdge(originVertex, destinationVertex) != null) {
+                    return null;
+                }
+                ShuttleBase shuttle = new Shuttle(origin, destination, time, nextShuttleId++);
+                var edge = adjacencyMap.insertEdge(originVertex, destinationVertex, shuttle);
+                shuttleEdges.put(shuttle, edge);
+                seats.open(nextShuttleId - 1, this.getCapacity());
+                structureChanged();
+                return shuttle;
+            } finally {
+                lock.unlock();
+            }
         }
 
         return null;
@@ -65,10 +237,28 @@ public class Airport extends AirportBase {
     @Override
     public boolean removeTerminal(TerminalBase terminal) {
         if (terminal != null) {
-            AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase> vertex = terminalVertices.get(terminal);
-            terminalVertices.remove(terminal);
-            adjacencyMap.removeVertex(vertex);
-            return true;
+            lock.lock();
+            try {
+                materialize();
+                AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase> vertex = terminalVertices.remove(terminal);
+                if (vertex == null) {
+                    return false;
+                }
+                for (var edge : adjacencyMap.outgoingEdges(vertex)) {
+                    shuttleEdges.remove(edge.getElement());
+                    seats.close(((Shuttle) edge.getElement()).getId());
+                }
+                adjacencyMap.removeVertex(vertex);
+                structureChanged();
+                if (batchDepth > 0) {
+                    batchRemovedTerminals = true;
+                } else if (trees != null) {
+                    trees.terminalsRemoved(graphVersion);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
         }
 
         return false;
@@ -77,10 +267,19 @@ public class Airport extends AirportBase {
     @Override
     public boolean removeShuttle(ShuttleBase shuttle) {
         if (shuttle != null) {
-            AdjacencyMap<TerminalBase, ShuttleBase>.Edge<ShuttleBase> edge = shuttleEdges.get(shuttle);
-            shuttleEdges.remove(shuttle);
-            adjacencyMap.removeEdge(edge);
-            return true;
+            lock.lock();
+            try {
+                materialize();
+                AdjacencyMap<TerminalBase, ShuttleBase>.Edge<ShuttleBase> edge = shuttleEdges.remove(shuttle);
+                if (edge == null) {
+                    return false; // already removed, possibly by another thread filling it up
+                }
+                adjacencyMap.removeEdge(edge);
+                closeShuttle(shuttle);
+                return true;
+            } finally {
+                lock.unlock();
+            }
         }
 
         return false;
@@ -89,675 +288,6392 @@ public class Airport extends AirportBase {
     @Override
     public List<ShuttleBase> outgoingShuttles(TerminalBase terminal) {
         if (terminal != null) {
-            AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase> vertex = terminalVertices.get(terminal);
-            return adjacencyMap.outgoingEdges(vertex).stream().map(AdjacencyMap.Edge::getElement)
-                    .collect(Collectors.toList());
+            lock.lock();
+            try {
+                materialize();
+                var graph = snapshot;
+                if (graph != null) {
+                    return graph.shuttlesOf(graph.indexOf(terminal));
+                }
+                AdjacencyMap<TerminalBase, ShuttleBase>.Vertex<TerminalBase> vertex = terminalVertices.get(terminal);
+                List<ShuttleBase> shuttles = new ArrayList<>(adjacencyMap.degree(vertex));
+                for (int i = 0; i < adjacencyMap.degree(vertex); i++) {
+                    shuttles.add(adjacencyMap.incidentEdge(vertex, i).getElement());
+                }
+                return Collections.unmodifiableList(shuttles);
+            } finally {
+                lock.unlock();
+            }
         }
 
         return null;
     }
 
-    @Override
-    public Path findShortestPath(TerminalBase origin, TerminalBase destination) {
-        var originVertex = terminalVertices.get(origin);
-        var destinationVertex = terminalVertices.get(destination);
-        if (originVertex == null || destinationVertex == null) {
-            return null;
+    /**
+     * Calls the visitor for every shuttle from a terminal, with the terminal
+     * at its other end, its time and the waiting time of that terminal. Runs
+     * on the routing snapshot without locking or allocating; shuttles added or
+     * removed meanwhile may or may not be visited.
+     *
+     * @param terminal the terminal
+     * @param visitor  the visitor
+     */
+    public void forEachNeighbour(TerminalBase terminal, ShuttleVisitor visitor) {
+        var graph = snapshot();
+        int u = graph.indexOf(terminal);
+        if (u < 0) {
+            return;
         }
+        for (int slot = graph.offsets[u]; slot < graph.offsets[u + 1]; slot++) {
+            if (graph.isOpen(slot)) {
+                int v = graph.targets[slot];
+                visitor.visit(graph.terminals[v], graph.times[slot], graph.waiting[v]);
+            }
+        }
+    }
 
-      var shortestPathMap =   GraphUtilities.shortestPathBFS(this.adjacencyMap, originVertex, destinationVertex, (e) -> {
-          return e.getTime();
-      });
-
-        // Sort in order traveled
-        var sortedMap = shortestPathMap.entrySet().
-                stream().
-                sorted(Map.Entry.comparingByValue()).
-                collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
+    @Override
+    public Path findShortestPath(TerminalBase origin, TerminalBase destination) {
+        return findPath(origin, destination, false);
+    }
 
-        return getPath(destination, sortedMap);
+    @Override
+    public Path findFastestPath(TerminalBase origin, TerminalBase destination) {
+        return findPath(origin, destination, true);
     }
 
     /**
      * Helper method to build path
      *
-     * @param destination the destination vertex path
-     * @param sortedMap   the sorted map returned from Dijkstra's algorithm
-     * @return the path
-     */
-    private Path getPath(TerminalBase destination, LinkedHashMap<AdjacencyMap<TerminalBase,
-            ShuttleBase>.Vertex<TerminalBase>, Integer> sortedMap) {
-        int totalTime = 0;
-        List<TerminalBase> path = new ArrayList<>();
-        var iter = sortedMap.keySet().iterator();
-        var lastOrigin = iter.next();
-        totalTime += lastOrigin.getElement().getWaitingTime();
-        path.add(lastOrigin.getElement());
-        while (iter.hasNext()) {
-            var d = iter.next();
-            ShuttleBase shuttle = shuttleBetween(lastOrigin.getElement(), d.getElement());
-            int capacity = shuttleCapacity.get(shuttle);
-            capacity--;
-            shuttleCapacity.put(shuttle, capacity);
-            if (capacity == 0) {
-                shuttleCapacity.remove(shuttle);
-                adjacencyMap.removeEdge(shuttleEdges.get(shuttle));
-                shuttleEdges.remove(shuttle);
-            }
-            if (!d.getElement().getId().equals(destination.getId())) {
-                totalTime += d.getElement().getWaitingTime();
-            }
-
-            totalTime += shuttle.getTime();
-            lastOrigin = d;
-            path.add(lastOrigin.getElement());
-        }
-
-        // Destination doesn't seem to be reachable
-        if(!lastOrigin.getElement().getId().equals(destination.getId())) {
-            return null;
-        }
+     * @param origin      the starting terminal
+     * @param destination the destination terminal
+     * @param fastest     true to minimise time, false to minimise shuttles taken
+     * @return the path or null if the destination is not reachable
+     */
+    private Path findPath(TerminalBase origin, TerminalBase destination, boolean fastest) {
+        var reservation = reserve(origin, destination, fastest, 1);
+        return reservation == null ? null : reservation.getPath();
+    }
 
-        return new Path(path, totalTime);
+    /**
+     * Reserves seats for a party on the fastest route between two terminals
+     * that only uses shuttles with a seat for everyone in the party. Seats are
+     * taken on every shuttle of the route or on none of them.
+     *
+     * @param origin      the starting terminal
+     * @param destination the destination terminal
+     * @param passengers  the size of the party
+     * @return the reservation, or null if no route has enough seats for the party
+     */
+    public Reservation reserveFastestPath(TerminalBase origin, TerminalBase destination, int passengers) {
+        if (passengers < 1) {
+            throw new IllegalArgumentException("a party has at least one passenger");
+        }
+        return reserve(origin, destination, true, passengers);
     }
 
     /**
-     * Helper method that returns the edge between two vertices
+     * Counts a route query in the metrics and, if it is sampled, times it and
+     * records the counters of its searches
      *
-     * @param origin      vertex
-     * @param destination vertex
-     * @return the edge between the two vertices or null
+     * @param origin      the starting terminal
+     * @param destination the destination terminal
+     * @param fastest     true to minimise time, false to minimise shuttles taken
+     * @param passengers  the size of the party
+     * @return the reservation, or null if there is no route for the party
      */
-    private ShuttleBase shuttleBetween(TerminalBase origin, TerminalBase destination) {
-        var originVertex = terminalVertices.get(origin);
-        var destinationVertex = terminalVertices.get(destination);
-        if (originVertex == null || destinationVertex == null) {
-            return null;
+    private Reservation reserve(TerminalBase origin, TerminalBase destination, boolean fastest, int passengers) {
+        checkNotInBatch();
+        var query = passengers > 1 ? RoutingMetrics.Query.PARTY
+                : fastest ? RoutingMetrics.Query.FASTEST : RoutingMetrics.Query.SHORTEST;
+        if (!metrics.sample(query)) {
+            return reserveRoute(origin, destination, fastest, passengers, null);
         }
+        var sampled = GraphUtilities.workspace().sampled;
+        sampled.reset();
+        long start = System.nanoTime();
+        var reservation = reserveRoute(origin, destination, fastest, passengers, sampled);
+        long nanos = System.nanoTime() - start;
+        metrics.record(query, nanos, sampled, reservation == null ? 0 : reservation.getPath().terminals.size() - 1);
+        return reservation;
+    }
+
+    /**
+     * Searches the current snapshot and books the route on the seat ledger,
+     * neither of which takes the lock. If a shuttle of the route filled up or
+     * was removed in the meantime, it is taken out of the graph and the search
+     * runs again on the new snapshot. Parties of more than one passenger always
+     * use Dijkstra's algorithm restricted to the shuttles with enough seats left,
+     * and bypass the route cache.
+     *
+     * @param origin      the starting terminal
+     * @param destination the destination terminal
+     * @param fastest     true to minimise time, false to minimise shuttles taken
+     * @param passengers  the size of the party
+     * @param sampled     adds up the counters of every search, or null
+     * @return the reservation, or null if there is no route for the party
+     */
+    private Reservation reserveRoute(TerminalBase origin, TerminalBase destination, boolean fastest,
+                                     int passengers, SearchStats sampled) {
+        while (true) {
+            var graph = snapshot();
+            int originId = graph.indexOf(origin);
+            int destinationId = graph.indexOf(destination);
+            if (originId < 0 || destinationId < 0) {
+                return null;
+            }
+
+            var workspace = GraphUtilities.workspace();
+            workspace.stats.reset(); // nothing is searched on a cache hit
+            var cache = passengers == 1 ? routeCache : null;
+            boolean cached = cache != null && cache.load(graph, originId, destinationId, fastest, workspace.forward);
+            if (passengers > 1) {
+                GraphUtilities.fastestPathDijkstra(graph, originId, destinationId, seats, passengers,
+                        workspace.forward, workspace.stats);
+            } else if (!cached) {
+                var kept = fastest ? alternatives : null;
+                var hot = fastest ? trees : null;
+                if (kept != null) {
+                    kept.route(graph, seats, originId, destinationId, workspace);
+                } else if (hot == null || !hot.route(graph, originId, destinationId, workspace)) {
+                    search(graph, originId, destinationId, fastest, workspace);
+                }
+            }
+            if (sampled != null) {
+                sampled.add(workspace.stats);
+            }
+            var route = route(graph, workspace.forward, originId, destinationId);
+            // Destination doesn't seem to be reachable
+            if (route == null) {
+                if (!cached && cache != null) {
+                    cache.store(graph, originId, destinationId, fastest, workspace.forward);
+                }
+                return null;
+            }
+
+            int failed = seats.reserveAll(route.shuttles, passengers);
+            if (failed < 0) {
+                if (!cached && cache != null) {
+                    cache.store(graph, originId, destinationId, fastest, workspace.forward);
+                }
+                retireFull(graph, route.shuttles);
+                return new Reservation(seats, new Path(route, route.time), route.shuttles, passengers);
+            }
 
-        var edge = adjacencyMap.getEdge(originVertex, destinationVertex);
-        if (edge != null) {
-            return edge.getElement();
+            // the next search skips the shuttle if it is still short of seats
+            metrics.bookingConflict();
+            int shuttle = route.shuttles[failed];
+            if (seats.seatsLeft(shuttle) <= 0) {
+                retire(graph, shuttle);
+                if (cache != null) {
+                    cache.evictShuttle(shuttle);
+                }
+            }
         }
-        return null;
     }
 
+    /**
+     * Runs the selected routing algorithm, leaving the route in the forward
+     * search space of the workspace
+     *
+     * @param graph       the snapshot to search
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param fastest     true to minimise time, false to minimise shuttles taken
+     * @param workspace   the calling thread's workspace
+     */
+    private void search(CompactGraph graph, int origin, int destination, boolean fastest,
+                        SearchWorkspace workspace) {
+        var routing = this.routing;
+        if (routing == Routing.ROUTE_TABLE && graph.size() <= RouteTable.MAX_TERMINALS) {
+            var table = routeTable(graph);
+            if (fastest) {
+                table.fastestRoute(origin, destination, workspace.forward, workspace.stats);
+            } else {
+                table.shortestRoute(origin, destination, workspace.forward, workspace.stats);
+            }
+        } else if (routing == Routing.BIDIRECTIONAL) {
+            if (fastest) {
+                GraphUtilities.bidirectionalDijkstra(graph, origin, destination, workspace.forward,
+                        workspace.backward, workspace.stats);
+            } else {
+                GraphUtilities.bidirectionalBFS(graph, origin, destination, workspace.forward, workspace.backward,
+                        workspace.stats);
+            }
+        } else if (!fastest) {
+            GraphUtilities.shortestPathBFS(graph, origin, destination, workspace.forward, workspace.stats);
+        } else if (routing == Routing.ALT) {
+            GraphUtilities.landmarkAStar(graph, origin, destination, landmarks(graph), workspace.forward,
+                    workspace.stats);
+        } else if (routing == Routing.CONTRACTION_HIERARCHY) {
+            GraphUtilities.hierarchyQuery(hierarchy(graph), origin, destination, workspace);
+        } else if (routing == Routing.DIAL) {
+            GraphUtilities.dialDijkstra(graph, origin, destination, workspace.forward, workspace.stats);
+        } else if (routing == Routing.DELTA_STEPPING && graph.size() >= parallelTerminals) {
+            DeltaStepping.search(graph, origin, destination, workspace.forward, workspace.stats);
+        } else {
+            GraphUtilities.fastestPathDijkstra(graph, origin, destination, workspace.forward, workspace.stats);
+        }
+    }
 
-    @Override
-    public Path findFastestPath(TerminalBase origin, TerminalBase destination) {
-        var originVertex = terminalVertices.get(origin);
-        var destinationVertex = terminalVertices.get(destination);
-        if (originVertex == null || destinationVertex == null) {
+    /**
+     * Reads the route a search found by walking its parent pointers back from
+     * the destination. Has no side effects, so it is safe to call from any thread.
+     *
+     * @param graph       the snapshot the search ran on
+     * @param space       the search space rooted at origin
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @return the route or null if the destination is not reachable
+     */
+    private static CompactRoute route(CompactGraph graph, SearchSpace space, int origin, int destination) {
+        if (!space.isReached(destination)) {
             return null;
         }
-        var fastestPathMap =
-                GraphUtilities.fastestPathDijkstra(this.adjacencyMap, originVertex, destinationVertex, (e, u) -> {
-                    int weight = e.getTime();
-                    int waitTime = u.getWaitingTime();
-                    return weight + waitTime;
-                });
 
-        // Sort in order traveled
-        var sortedMap = fastestPathMap.entrySet().
-                stream().
-                sorted(Map.Entry.comparingByValue()).
-                collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (e1, e2) -> e1, LinkedHashMap::new));
+        int hops = 0;
+        for (int v = destination; v != origin; v = space.parent[v]) {
+            hops++;
+        }
 
-        return getPath(destination, sortedMap);
+        int[] terminals = new int[hops + 1];
+        int[] shuttles = new int[hops];
+        int totalTime = hops == 0 ? graph.waiting[origin] : 0;
+        for (int v = destination; v != origin; v = space.parent[v]) {
+            int u = space.parent[v];
+            int slot = space.via[v];
+            terminals[hops] = v;
+            shuttles[--hops] = graph.shuttleIds[slot];
+            // no waiting at the destination
+            totalTime += graph.times[slot] + graph.waiting[u];
+        }
+        terminals[0] = origin;
+        return new CompactRoute(graph.terminals, terminals, shuttles, totalTime);
     }
 
-    /* Implement all the necessary methods of the Airport here */
-
-    static class Terminal extends TerminalBase {
-        /**
-         * Creates a new TerminalBase instance with the given terminal ID
-         * and waiting time.
-         *
-         * @param id          terminal ID
-         * @param waitingTime waiting time for the terminal, in minutes
-         */
-        public Terminal(String id, int waitingTime) {
-            super(id, waitingTime);
+    /**
+     * Finds the fastest path from one origin to every terminal, without taking
+     * seats. With DELTA_STEPPING routing on a large enough airport the search
+     * runs in parallel on the common fork join pool; the times are the same
+     * either way, but where several paths are equally fast the parallel search
+     * may pick another one than Dijkstra's algorithm (see DeltaStepping).
+     *
+     * @param origin the starting terminal
+     * @return the paths, or null if the origin is not in the airport
+     */
+    public FastestPaths findFastestPathsFrom(TerminalBase origin) {
+        var graph = snapshot();
+        int originId = graph.indexOf(origin);
+        if (originId < 0) {
+            return null;
         }
-
-        /* Implement all the necessary methods of the Terminal here */
+        var workspace = GraphUtilities.workspace();
+        if (routing == Routing.DELTA_STEPPING && graph.size() >= parallelTerminals) {
+            return DeltaStepping.searchAll(graph, originId, workspace.stats);
+        }
+        var space = workspace.forward;
+        GraphUtilities.fastestPathDijkstra(graph, originId, -1, space, workspace.stats);
+        int n = graph.size();
+        int[] distance = new int[n];
+        int[] parent = new int[n];
+        int[] via = new int[n];
+        for (int v = 0; v < n; v++) {
+            distance[v] = space.isReached(v) ? space.distance[v] : -1;
+            parent[v] = space.isReached(v) ? space.parent[v] : -1;
+            via[v] = space.isReached(v) ? space.via[v] : -1;
+        }
+        return new FastestPaths(graph, originId, distance, parent, via);
     }
 
-    static class Shuttle extends ShuttleBase {
-        /**
-         * Creates a new ShuttleBase instance, travelling from origin to
-         * destination and requiring 'time' minutes to travel.
-         *
-         * @param origin      origin terminal
-         * @param destination destination terminal
-         * @param time        time required to travel, in minutes
-         */
-        public Shuttle(TerminalBase origin, TerminalBase destination, int time) {
-            super(origin, destination, time);
+    /**
+     * Returns up to k fastest paths between two terminals that do not visit a
+     * terminal twice, fastest first. No seats are taken. When alternative
+     * routes are enabled they are kept for findFastestPath as well.
+     *
+     * @param origin      the starting terminal
+     * @param destination the destination terminal
+     * @param k           the number of paths wanted
+     * @return the paths; none if the destination is not reachable
+     */
+    public List<Path> findAlternativePaths(TerminalBase origin, TerminalBase destination, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        List<Path> paths = new ArrayList<>(k);
+        var graph = snapshot();
+        int originId = graph.indexOf(origin);
+        int destinationId = graph.indexOf(destination);
+        if (originId < 0 || destinationId < 0) {
+            return paths;
+        }
+        var routes = AlternativeRoutes.compute(graph, originId, destinationId, k, GraphUtilities.workspace());
+        var kept = alternatives;
+        if (kept != null) {
+            kept.store(graph, originId, destinationId, routes);
         }
+        for (var alternative : routes) {
+            var route = alternative.toRoute(graph);
+            paths.add(new Path(route, route.time));
+        }
+        return paths;
+    }
 
-        /* Implement all the necessary methods of the Shuttle here */
+    /**
+     * Finds the fastest paths from one origin to many destinations with a single
+     * search. Seats are taken in the order of the destinations; when an earlier
+     * path fills up a shuttle, the later paths that needed it are searched again.
+     *
+     * @param origin       the starting terminal
+     * @param destinations the destination terminals
+     * @return the path to each destination, null where it is not reachable
+     */
+    public List<Path> findFastestPaths(TerminalBase origin, List<TerminalBase> destinations) {
+        return findFastestPaths(Collections.nCopies(destinations.size(), origin), destinations);
     }
 
-}
+    /**
+     * Finds the fastest path for many (origin, destination) requests. There is one
+     * single source search per distinct origin, and those run in parallel on the
+     * common fork join pool. Seats are then taken in request order; when an earlier
+     * path fills up a shuttle, the later paths that needed it are searched again.
+     *
+     * @param origins      the starting terminal of each request
+     * @param destinations the destination terminal of each request
+     * @return the path of each request, null where it is not reachable
+     */
+    public List<Path> findFastestPaths(List<TerminalBase> origins, List<TerminalBase> destinations) {
+        if (origins.size() != destinations.size()) {
+            throw new IllegalArgumentException("origins and destinations differ in size");
+        }
+        checkNotInBatch();
+        var graph = snapshot();
+        int requests = origins.size();
+        int[] originIds = new int[requests];
+        int[] destinationIds = new int[requests];
+        Map<Integer, List<Integer>> byOrigin = new LinkedHashMap<>();
+        for (int i = 0; i < requests; i++) {
+            originIds[i] = graph.indexOf(origins.get(i));
+            destinationIds[i] = graph.indexOf(destinations.get(i));
+            if (originIds[i] >= 0 && destinationIds[i] >= 0) {
+                byOrigin.computeIfAbsent(originIds[i], id -> new ArrayList<>()).add(i);
+            }
+        }
 
-/**
- *  Represents a position in a list
- * @param <E> type
- */
-interface Position<E> {
-    E getElement() throws IllegalStateException;
-}
+        CompactRoute[] routes = new CompactRoute[requests];
+        byOrigin.entrySet().parallelStream().forEach(group -> {
+            var workspace = GraphUtilities.workspace();
+            GraphUtilities.fastestPathDijkstra(graph, group.getKey(), -1, workspace.forward, workspace.stats);
+            for (int i : group.getValue()) {
+                routes[i] = route(graph, workspace.forward, originIds[i], destinationIds[i]);
+            }
+        });
 
-/**
- *  A Generic minimal implementation of a positional list
- *  to be used with AdjacencyMap
- * @param <E> type
- */
-class PositionalLinkedList<E> {
+        List<Path> paths = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            var route = routes[i];
+            if (route == null) {
+                paths.add(null);
+            } else if (seats.reserveAll(route.shuttles, 1) < 0) {
+                retireFull(graph, route.shuttles);
+                paths.add(new Path(route, route.time));
+            } else {
+                paths.add(findFastestPath(origins.get(i), destinations.get(i)));
+            }
+        }
+        return paths;
+    }
 
-    private  class Node<E> implements Position<E> {
-        private E element;
+    /**
+     * Allocates seats to a group of passengers leaving the same terminal for
+     * various destinations, at the minimum total travel time. Passengers for
+     * the same destination share routes as far as seats allow and are only sent
+     * on slower routes once the faster ones are full. Passengers who cannot be
+     * seated at all are left out.
+     *
+     * @param origin     the terminal the passengers leave from
+     * @param passengers how many passengers go to each destination
+     * @return one reservation per route used
+     */
+    public List<Reservation> allocatePassengers(TerminalBase origin, Map<TerminalBase, Integer> passengers) {
+        checkNotInBatch();
+        List<Reservation> reservations = new ArrayList<>();
+        var graph = snapshot();
+        int originId = graph.indexOf(origin);
+        if (originId < 0) {
+            return reservations;
+        }
+        int[] demand = new int[graph.size()];
+        for (var entry : passengers.entrySet()) {
+            int id = graph.indexOf(entry.getKey());
+            int count = entry.getValue() == null ? 0 : entry.getValue();
+            if (id < 0 || count <= 0) {
+                continue;
+            }
+            if (id == originId) {
+                var stay = new CompactRoute(graph.terminals, new int[]{originId}, new int[0], graph.waiting[originId]);
+                reservations.add(new Reservation(seats, new Path(stay, stay.time), stay.shuttles, count));
+            } else {
+                demand[id] += count;
+            }
+        }
 
-        private Node<E> prev;
+        for (var allocation : PassengerFlow.solve(graph, seats, originId, demand)) {
+            var route = allocation.route;
+            if (seats.reserveAll(route.shuttles, allocation.passengers) < 0) {
+                retireFull(graph, route.shuttles);
+                reservations.add(new Reservation(seats, new Path(route, route.time), route.shuttles,
+                        allocation.passengers));
+            } else {
+                // seats were taken concurrently since the snapshot was read
+                var fallback = reserve(origin, route.get(route.size() - 1), true, allocation.passengers);
+                if (fallback != null) {
+                    reservations.add(fallback);
+                }
+            }
+        }
+        return reservations;
+    }
 
-        private Node<E> next;
+    /**
+     * Returns the terminals of the airport, in the order they were added
+     *
+     * @return a read-only list of the terminals
+     */
+    public List<TerminalBase> terminals() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot().terminals));
+    }
 
-        public Node(E e, Node<E> p, Node<E> n) {
-            element = e;
-            prev = p;
-            next = n;
+    /**
+     * Saves the airport to a binary snapshot: its terminals and shuttles, the
+     * seats left on every shuttle and whichever routing indexes (landmarks,
+     * contraction hierarchy, route table) have been built for the current graph.
+     * Changes to the graph wait until the file is written; seats booked
+     * meanwhile may or may not be counted.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        lock.lock();
+        try {
+            var graph = snapshot();
+            var index = landmarks != null && landmarks.covers(graph) ? landmarks : null;
+            var ch = hierarchy != null && hierarchy.covers(graph) ? hierarchy : null;
+            var table = routeTable != null && routeTable.covers(graph) ? routeTable : null;
+            if (table != null) {
+                table.repair(graph);
+            }
+            SnapshotFile.write(file, out -> {
+                out.writeInt(getCapacity());
+                graph.writeTo(out);
+                seats.writeTo(out, graph.shuttleBound());
+                out.writeBoolean(index != null);
+                if (index != null) {
+                    index.writeTo(out);
+                }
+                out.writeBoolean(ch != null);
+                if (ch != null) {
+                    ch.writeTo(out);
+                }
+                out.writeBoolean(table != null);
+                if (table != null) {
+                    table.writeTo(out);
+                }
+            });
+        } finally {
+            lock.unlock();
         }
+    }
 
-        public E getElement() {
-            if (next == null)
-                    return null;
-            return element;
+    /**
+     * Loads an airport saved with save. The routing snapshot and indexes are
+     * read straight from the mapped file and installed as they were, so the
+     * first query does not wait for anything to be built; the adjacency map is
+     * only built from the snapshot when the graph is first changed or walked.
+     * Terminals and shuttles are new objects of the Airport classes, with the
+     * terminals listed by terminals().
+     *
+     * @param file the snapshot file
+     * @return the airport
+     * @throws IOException if the file cannot be read, or is not an intact snapshot
+     */
+    public static Airport loadSnapshot(File file) throws IOException {
+        var in = SnapshotFile.open(file);
+        int capacity = in.getInt();
+        var graph = CompactGraph.readFrom(in, 0);
+        var airport = new Airport(capacity, graph.size(), graph.shuttleBound());
+        airport.seats.readFrom(in, graph.shuttleBound());
+        if (in.get() != 0) {
+            airport.landmarks = LandmarkIndex.readFrom(graph, in);
         }
-
-        public Node<E> getPrev() {
-            return prev;
+        if (in.get() != 0) {
+            airport.hierarchy = ContractionHierarchy.readFrom(graph, in);
         }
-
-        public Node<E> getNext() {
-            return next;
+        if (in.get() != 0) {
+            airport.routeTable = RouteTable.readFrom(graph, in);
         }
+        airport.nextShuttleId = graph.shuttleBound();
+        airport.unmaterialized = graph;
+        airport.snapshot = graph;
+        return airport;
+    }
 
-        public void setElement(E e) {
-            element = e;
+    /**
+     * Builds the adjacency map from the snapshot the airport was loaded with,
+     * leaving out closed shuttles. Must be called with the lock held, before
+     * the map is used.
+     */
+    private void materialize() {
+        var graph = unmaterialized;
+        if (graph == null) {
+            return;
         }
-
-        public void setPrev(Node<E> p) {
-            prev = p;
+        unmaterialized = null;
+        for (var terminal : graph.terminals) {
+            terminalVertices.put(terminal, adjacencyMap.insertVertex(terminal));
         }
-
-        public void setNext(Node<E> n) {
-            next = n;
+        for (int id = 0; id < graph.shuttleBound(); id++) {
+            var shuttle = graph.shuttle(id);
+            if (graph.runs(id)) {
+                shuttleEdges.put(shuttle, adjacencyMap.insertEdge(terminalVertices.get(shuttle.getOrigin()),
+                        terminalVertices.get(shuttle.getDestination()), shuttle));
+            }
         }
     }
 
-    private Node<E> head;
+    /**
+     * Adds a scheduled departure of a shuttle, for the timetable queries. The
+     * shuttle arrives at the other end its time in minutes later.
+     *
+     * @param shuttle   the shuttle
+     * @param from      the terminal it leaves from, either end of the shuttle
+     * @param departure the departure time, in minutes
+     */
+    public void addDeparture(ShuttleBase shuttle, TerminalBase from, int departure) {
+        TerminalBase to;
+        lock.lock();
+        try {
+            materialize();
+            if (shuttleEdges.get(shuttle) == null) {
+                throw new IllegalArgumentException("no such shuttle: " + shuttle);
+            }
+            to = opposite(shuttle, from);
+        } finally {
+            lock.unlock();
+        }
+        if (to == null) {
+            throw new IllegalArgumentException(from + " is not an end of " + shuttle);
+        }
+        timetable.add((Shuttle) shuttle, from, to, departure);
+    }
 
-    private Node<E> tail;
-    private int size = 0;
+    /**
+     * Returns the journey from origin reaching destination first for a
+     * passenger at the origin at the given time, following the departures
+     * added with addDeparture. Boarding a shuttle takes the waiting time of the
+     * terminal, at the origin as at every change. Shuttles removed since are
+     * not taken.
+     *
+     * @param origin      the origin terminal
+     * @param destination the destination terminal
+     * @param time        the time the passenger is at the origin
+     * @return the journey, or null if destination cannot be reached
+     */
+    public Journey findEarliestArrival(TerminalBase origin, TerminalBase destination, int time) {
+        if (origin.equals(destination)) {
+            return new Journey(List.of(origin), new int[0], time, time);
+        }
+        var connections = timetable.connections();
+        int o = connections.indexOf(origin);
+        int d = connections.indexOf(destination);
+        if (o < 0 || d < 0) {
+            return null;
+        }
+        return connections.earliestArrival(o, d, time, seats);
+    }
 
-    public PositionalLinkedList() {
-        head = new Node<>(null, null, null);
-        tail = new Node<>(null, head, null);
-        head.setNext(tail);
+    /**
+     * Returns the journeys from origin to destination for a passenger at the
+     * origin between two times, leaving out those that start earlier than
+     * another one without arriving earlier. Each journey starts at the latest
+     * time that still makes its first departure.
+     *
+     * @param origin      the origin terminal
+     * @param destination the destination terminal
+     * @param earliest    the earliest start time
+     * @param latest      the latest start time
+     * @return the journeys by start time; none if origin and destination are the same
+     */
+    public List<Journey> findJourneys(TerminalBase origin, TerminalBase destination, int earliest, int latest) {
+        var connections = timetable.connections();
+        int o = connections.indexOf(origin);
+        int d = connections.indexOf(destination);
+        if (o < 0 || d < 0 || o == d) {
+            return new ArrayList<>();
+        }
+        return connections.profile(o, d, earliest, latest, seats);
     }
 
+    /**
+     * Removes the shuttles of a route that were filled up by booking it
+     *
+     * @param graph    the snapshot the route was found on
+     * @param shuttles the shuttle IDs of the route
+     */
+    private void retireFull(CompactGraph graph, int[] shuttles) {
+        for (int shuttle : shuttles) {
+            if (seats.seatsLeft(shuttle) == 0) {
+                retire(graph, shuttle);
+            }
+        }
+    }
+
+    /**
+     * Removes a shuttle with no seats left from the graph. Nothing happens if a
+     * seat was released before it could be closed, or if it was removed already;
+     * only the thread that closes it counts it as exhausted.
+     *
+     * @param graph   a snapshot containing the shuttle
+     * @param shuttle the shuttle ID
+     */
+    private void retire(CompactGraph graph, int shuttle) {
+        if (!seats.closeIfFull(shuttle)) {
+            if (seats.seatsLeft(shuttle) == SeatLedger.CLOSED && snapshot == graph) {
+                // closed by a change that has not published its snapshot yet, such as a batch
+                lock.lock();
+                lock.unlock();
+            }
+            return;
+        }
+        metrics.shuttleExhausted();
+        lock.lock();
+        try {
+            materialize();
+            ShuttleBase full = graph.shuttle(shuttle);
+            var edge = shuttleEdges.remove(full);
+            if (edge != null) {
+                adjacencyMap.removeEdge(edge);
+                closeShuttle(full);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the routing snapshot of the graph, freezing the adjacency map
+     * into a new one if it changed since the last query. Only that rebuild
+     * takes the lock, so consecutive changes are published together.
+     *
+     * @return the current snapshot
+     */
+    private CompactGraph snapshot() {
+        var graph = snapshot;
+        if (graph != null) {
+            return graph;
+        }
+        lock.lock();
+        try {
+            if (snapshot == null) {
+                snapshot = CompactGraph.of(adjacencyMap, nextShuttleId, graphVersion);
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the landmark tables for the snapshot. Closing shuttles only makes
+     * routes longer, so tables built before that remain valid lower bounds and
+     * are only rebuilt after terminals or shuttles were added or terminals removed.
+     *
+     * @param graph the current snapshot
+     * @return the landmark tables
+     */
+    private LandmarkIndex landmarks(CompactGraph graph) {
+        var index = landmarks;
+        if (index == null || !index.covers(graph)) {
+            index = LandmarkIndex.build(graph, LandmarkIndex.DEFAULT_LANDMARKS);
+            landmarks = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the contraction hierarchy for the snapshot. Closed shuttles only
+     * need the hierarchy to be customised again, which keeps the contraction
+     * order and shortcuts; new terminals or shuttles need a new contraction.
+     *
+     * @param graph the current snapshot
+     * @return the hierarchy customised for graph
+     */
+    private ContractionHierarchy hierarchy(CompactGraph graph) {
+        var ch = hierarchy;
+        if (ch == null || !ch.covers(graph)) {
+            ch = ContractionHierarchy.build(graph);
+            hierarchy = ch;
+        } else if (!ch.isCustomisedFor(graph)) {
+            ch = ch.customise(graph);
+            hierarchy = ch;
+        }
+        return ch;
+    }
+
+    /**
+     * Returns the all pairs route table for the snapshot. Routes that used a
+     * shuttle closed since the table was computed are repaired; anything else
+     * needs a new table.
+     *
+     * @param graph the current snapshot
+     * @return the route table, up to date for graph
+     */
+    private RouteTable routeTable(CompactGraph graph) {
+        var table = routeTable;
+        if (table == null || !table.covers(graph)) {
+            table = new RouteTable(graph);
+            routeTable = table;
+        } else {
+            table.repair(graph);
+        }
+        return table;
+    }
+
+    /**
+     * Drops the snapshot after terminals or shuttles were added or terminals
+     * removed, which also makes every cached route stale. Must be called with
+     * the lock held.
+     */
+    private void structureChanged() {
+        snapshot = null;
+        graphVersion++;
+    }
+
+    /**
+     * Patches the snapshot (if any) so routing no longer uses the given shuttle,
+     * and evicts the cached routes that used it. The patched snapshot is a copy,
+     * searches still running on the old one are not disturbed. Must be called
+     * with the lock held.
+     *
+     * @param shuttle the shuttle that was removed from the adjacency map
+     */
+    private void closeShuttle(ShuttleBase shuttle) {
+        int id = ((Shuttle) shuttle).getId();
+        seats.close(id); // routes found before the removal can no longer be booked
+        if (batchDepth > 0) {
+            batchClosed.push(id);
+            return;
+        }
+        if (snapshot != null) {
+            snapshot = snapshot.withoutShuttles(id);
+        }
+        if (routeCache != null) {
+            routeCache.evictShuttle(id);
+        }
+    }
+
+    /**
+     * Applies a group of changes as one: the lock is held throughout, so other
+     * threads see the graph either before or after all of them, and the routing
+     * structures are brought up to date once at the end rather than after each
+     * change. Closed shuttles are patched into the snapshot together, and the
+     * snapshot and its indexes are rebuilt at most once, on the first query
+     * after the batch if terminals or shuttles were added or terminals removed.
+     * Searches already running on the old snapshot may still find routes through
+     * shuttles the batch removed; booking them waits for the batch to finish
+     * and searches again.
+     *
+     * @param changes calls insertTerminal, insertShuttle, removeTerminal and
+     *                removeShuttle on the airport it is given; batches may nest
+     * @throws IllegalStateException if changes books seats, with findShortestPath,
+     *                               findFastestPath(s), reserveFastestPath or
+     *                               allocatePassengers
+     */
+    public void batchUpdate(Consumer<Airport> changes) {
+        lock.lock();
+        try {
+            materialize();
+            batchDepth++;
+            try {
+                changes.accept(this);
+            } finally {
+                if (--batchDepth == 0) {
+                    publishBatch();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects a query that books seats from inside a batch. The snapshot is
+     * only patched when the batch ends, so the query would keep finding the
+     * shuttles the batch removed and never manage to book them.
+     */
+    private void checkNotInBatch() {
+        if (lock.isHeldByCurrentThread() && batchDepth > 0) {
+            throw new IllegalStateException("seats cannot be booked inside a batch update");
+        }
+    }
+
+    /**
+     * Brings the snapshot, route cache and shortest path trees up to date with
+     * the changes of a batch. Must be called with the lock held.
+     */
+    private void publishBatch() {
+        if (!batchClosed.isEmpty()) {
+            int[] closed = batchClosed.toArray();
+            batchClosed.clear();
+            if (snapshot != null) {
+                snapshot = snapshot.withoutShuttles(closed);
+            }
+            if (routeCache != null) {
+                for (int id : closed) {
+                    routeCache.evictShuttle(id);
+                }
+            }
+        }
+        if (batchRemovedTerminals) {
+            batchRemovedTerminals = false;
+            if (trees != null) {
+                trees.terminalsRemoved(graphVersion);
+            }
+        }
+    }
+
+    /**
+     * Returns how many terminals the last findShortestPath or findFastestPath
+     * call on this thread settled before it found its destination
+     *
+     * @return number of settled terminals
+     */
+    public int getSettledCount() {
+        return GraphUtilities.workspace().stats.settled;
+    }
+
+    /**
+     * Returns the routing metrics: how many queries of each kind were made,
+     * the search counters and latencies of those sampled, and how many
+     * shuttles filled up
+     *
+     * @return the metrics at this point
+     */
+    public RoutingMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Sets how often route queries are sampled for the metrics. Sampling is
+     * off by default; queries are counted either way.
+     *
+     * @param sampleEvery sample one query in sampleEvery, 1 for all, 0 for none
+     */
+    public void setMetricsSampling(int sampleEvery) {
+        metrics.setSampleEvery(sampleEvery);
+    }
+
+    /**
+     * Publishes the routing metrics on the platform MBean server
+     *
+     * @param name the name to register them under
+     * @throws JMException if the name is taken or not valid for an MBean
+     */
+    public void registerMetrics(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new RoutingMetricsMBean(metrics), name);
+    }
+
+    /**
+     * Removes metrics published with registerMetrics
+     *
+     * @param name the name they were registered under
+     * @throws JMException if nothing is registered under the name
+     */
+    public void unregisterMetrics(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    /**
+     * Selects the algorithm used by findShortestPath and findFastestPath
+     *
+     * @param routing the routing algorithm
+     */
+    public void setRouting(Routing routing) {
+        this.routing = routing == null ? Routing.DIJKSTRA : routing;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    /**
+     * Sets the smallest airport DELTA_STEPPING routing searches in parallel;
+     * smaller ones use Dijkstra's algorithm. Where the parallel search starts
+     * to pay off depends on the cores available and the shape of the graph.
+     *
+     * @param terminals the number of terminals, DeltaStepping.MIN_TERMINALS by default
+     */
+    public void setDeltaSteppingThreshold(int terminals) {
+        if (terminals < 0) {
+            throw new IllegalArgumentException("terminals must not be negative");
+        }
+        parallelTerminals = terminals;
+    }
+
+    /**
+     * Puts a bounded cache of route results in front of findShortestPath and
+     * findFastestPath, replacing any cache enabled before
+     *
+     * @param capacity the maximum number of routes kept
+     * @param eviction which route to drop when the cache is full
+     */
+    public void enableRouteCache(int capacity, RouteCache.Eviction eviction) {
+        routeCache = new RouteCache(capacity, eviction);
+    }
+
+    public void disableRouteCache() {
+        routeCache = null;
+    }
+
+    /**
+     * Keeps shortest path trees for the origins findFastestPath is most often
+     * called with. They are repaired where shuttles were closed or added rather
+     * than searched again, and answer queries from their origin in O(route
+     * length). Replaces any trees kept before.
+     *
+     * @param maxTrees   the maximum number of trees kept
+     * @param hotQueries how many queries from an origin get it a tree
+     */
+    public void enableShortestPathTrees(int maxTrees, int hotQueries) {
+        trees = new ShortestPathTrees(maxTrees, hotQueries);
+    }
+
+    public void disableShortestPathTrees() {
+        trees = null;
+    }
+
+    /**
+     * Keeps the k fastest routes between the pairs of terminals findFastestPath
+     * is called with, so that once a shuttle of the fastest one is full or
+     * removed the next route still open is booked without searching again.
+     * Takes the place of the shortest path trees for findFastestPath, and
+     * replaces any routes kept before.
+     *
+     * @param k        the number of routes kept per pair of terminals
+     * @param capacity the maximum number of pairs kept
+     */
+    public void enableAlternativeRoutes(int k, int capacity) {
+        alternatives = new AlternativeRoutes(k, capacity);
+    }
+
+    public void disableAlternativeRoutes() {
+        alternatives = null;
+    }
+
+    /**
+     * Returns the alternative routes, to read their hit and fallback counters
+     *
+     * @return the alternative routes or null if they are not enabled
+     */
+    public AlternativeRoutes getAlternativeRoutes() {
+        return alternatives;
+    }
+
+    /**
+     * Returns the route cache, to read its hit and eviction counters
+     *
+     * @return the route cache or null if it is not enabled
+     */
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    /* Implement all the necessary methods of the Airport here */
+
+    /**
+     * Receives the shuttles of a terminal from forEachNeighbour
+     */
+    interface ShuttleVisitor {
+        void visit(TerminalBase neighbour, int time, int waitingTime);
+    }
+
+    /**
+     * The algorithms available to answer route queries
+     */
+    enum Routing {
+        /* A single search from the origin (breadth first for findShortestPath) */
+        DIJKSTRA,
+        /* Searches from the origin and the destination at the same time until they meet */
+        BIDIRECTIONAL,
+        /* A* guided by landmark lower bounds (findShortestPath stays breadth first) */
+        ALT,
+        /* Upward searches in a contraction hierarchy (findShortestPath stays breadth first) */
+        CONTRACTION_HIERARCHY,
+        /* Lookups in precomputed all pairs tables, for airports of up to RouteTable.MAX_TERMINALS terminals */
+        ROUTE_TABLE,
+        /* A single search from the origin, with Dial's bucket queue (findShortestPath stays breadth first) */
+        DIAL,
+        /* Parallel delta stepping, Dijkstra below setDeltaSteppingThreshold (findShortestPath stays breadth first) */
+        DELTA_STEPPING
+    }
+
+
+    static class Terminal extends TerminalBase {
+        /**
+         * Creates a new TerminalBase instance with the given terminal ID
+         * and waiting time.
+         *
+         * @param id          terminal ID
+         * @param waitingTime waiting time for the terminal, in minutes
+         */
+        public Terminal(String id, int waitingTime) {
+            super(id, waitingTime);
+        }
+
+        /* Implement all the necessary methods of the Terminal here */
+    }
+
+    static class Shuttle extends ShuttleBase {
+        private final int id;
+
+        /**
+         * Creates a new ShuttleBase instance, travelling from origin to
+         * destination and requiring 'time' minutes to travel.
+         *
+         * @param origin      origin terminal
+         * @param destination destination terminal
+         * @param time        time required to travel, in minutes
+         */
+        public Shuttle(TerminalBase origin, TerminalBase destination, int time) {
+            this(origin, destination, time, -1);
+        }
+
+        /**
+         * Creates a new shuttle with the dense ID given to it by the airport
+         *
+         * @param origin      origin terminal
+         * @param destination destination terminal
+         * @param time        time required to travel, in minutes
+         * @param id          shuttle ID, unique within the airport
+         */
+        Shuttle(TerminalBase origin, TerminalBase destination, int time, int id) {
+            super(origin, destination, time);
+            this.id = id;
+        }
+
+        /**
+         * Returns the shuttle ID, used to index the routing snapshot
+         *
+         * @return the shuttle ID
+         */
+        public int getId() {
+            return id;
+        }
+
+        /* Implement all the necessary methods of the Shuttle here */
+    }
+
+}
+
+/**
+ *  Represents a position in a list
+ * @param <E> type
+ */
+interface Position<E> {
+    E getElement() throws IllegalStateException;
+}
+
+/**
+ *  A Generic minimal implementation of a positional list
+ *  to be used with AdjacencyMap
+ * @param <E> type
+ */
+class PositionalLinkedList<E> {
+
+    private  class Node<E> implements Position<E> {
+        private E element;
+
+        private Node<E> prev;
+
+        private Node<E> next;
+
+        public Node(E e, Node<E> p, Node<E> n) {
+            element = e;
+            prev = p;
+            next = n;
+        }
+
+        public E getElement() {
+            if (next == null)
+                    return null;
+            return element;
+        }
+
+        public Node<E> getPrev() {
+            return prev;
+        }
+
+        public Node<E> getNext() {
+            return next;
+        }
+
+        public void setElement(E e) {
+            element = e;
+        }
+
+        public void setPrev(Node<E> p) {
+            prev = p;
+        }
+
+        public void setNext(Node<E> n) {
+            next = n;
+        }
+    }
+
+    private Node<E> head;
+
+    private Node<E> tail;
+    private int size = 0;
+
+    public PositionalLinkedList() {
+        head = new Node<>(null, null, null);
+        tail = new Node<>(null, head, null);
+        head.setNext(tail);
+    }
+
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    private Position<E> addBetween(E e, Node<E> pred, Node<E> succ) {
+        Node<E> newest = new Node<>(e, pred, succ);
+        pred.setNext(newest);
+        succ.setPrev(newest);
+        size++;
+        return newest;
+    }
+
+    public Position<E> addLast(E e) {
+        return addBetween(e, tail.getPrev(), tail);
+    }
+
+
+    public E remove(Position<E> p) {
+        Node<E> node = (Node<E>) p;
+        Node<E> previous = node.getPrev();
+        Node<E> preceding = node.getNext();
+        previous.setNext(preceding);
+        preceding.setPrev(previous);
+        size--;
+        E answer = node.getElement();
+        node.setElement(null);
+        node.setNext(null);
+        node.setPrev(null);
+        return answer;
+    }
+
+    public void forEach(Consumer<E> c) {
+        Node<E> walk = head.getNext();
+        while (walk != tail) {
+            c.accept(walk.getElement());
+            walk = walk.getNext();
+        }
+    }
+
+}
+
+
+/**
+ *
+ * Implemented using Lecture notes and course resources
+ *
+ * @param <V> Generic class for vertex
+ * @param <E> Generic class for Edge
+ */
+class AdjacencyMap<V, E> {
+    private final PositionalLinkedList<Vertex<V>> vertices = new PositionalLinkedList<>();
+    private final PositionalLinkedList<Edge<E>> edges = new PositionalLinkedList<>();
+
+
+    public class Vertex<V> {
+        private V element;
+        private Position<Vertex<V>> position;
+        private Map<Vertex<V>, Edge<E>> incoming, outgoing;
+        private final ArrayList<Edge<E>> incidence = new ArrayList<>(); // incident edges, in no particular order
+
+        public Vertex(V element) {
+            this.element = element;
+            incoming = new HashMap<>();
+            outgoing = incoming;
+        }
+
+        public V getElement() {
+            return element;
+        }
+
+        public Position<Vertex<V>> getPosition() {
+            return position;
+        }
+
+        public void setPosition(Position<Vertex<V>> position) {
+            this.position = position;
+        }
+
+        public Map<Vertex<V>, Edge<E>> getIncoming() {
+            return incoming;
+        }
+
+        public Map<Vertex<V>, Edge<E>> getOutgoing() {
+            return outgoing;
+        }
+    }
+
+    public  class Edge<E> {
+        private E element;
+        private Position<Edge<E>> position;
+        private Vertex<V>[ ] endpoints;
+        private final int[] incidenceIndex = new int[2]; // position in the incidence list of each endpoint
+
+        public Edge(Vertex<V> u, Vertex<V> v, E elem) {
+            element = elem;
+            endpoints = (Vertex<V>[ ]) new Vertex[2];
+            endpoints[0] = u;
+            endpoints[1] = v;
+        }
+
+        public E getElement() {
+            return element;
+        }
+
+
+        public Position<Edge<E>> getPosition() {
+            return position;
+        }
+
+        public void setPosition(Position<Edge<E>> position) {
+            this.position = position;
+        }
+
+        public Vertex<V>[] getEndpoints() {
+            return endpoints;
+        }
+
+    }
+
+    public Edge<E> getEdge(Vertex<V> u, Vertex<V> v) {
+        return u.getOutgoing().get(v);
+    }
+
+    /**
+     * Returns the edges incident to a vertex as a read-only view, which follows
+     * later changes to the map
+     */
+    public List<Edge<E>> outgoingEdges(Vertex<V> v) {
+        return Collections.unmodifiableList(v.incidence);
+    }
+
+    /**
+     * Returns the number of edges incident to a vertex. With incidentEdge this
+     * walks the edges of a vertex without allocating:
+     * for (int i = 0; i < map.degree(v); i++) { map.incidentEdge(v, i) ... }
+     */
+    public int degree(Vertex<V> v) {
+        return v.incidence.size();
+    }
+
+    public Edge<E> incidentEdge(Vertex<V> v, int i) {
+        return v.incidence.get(i);
+    }
+
+    public Vertex<V> insertVertex(V element) {
+        Vertex<V> v = new Vertex<>(element);
+        // set the position so we can remove it later
+        v.setPosition(vertices.addLast(v));
+        return v;
+    }
+
+    /**
+     * Removes a vertex and its edges in O(degree), taking the edges off the end
+     * of its incidence list
+     */
+    public void removeVertex(Vertex<V> v) {
+        while (!v.incidence.isEmpty()) {
+            removeEdge(v.incidence.get(v.incidence.size() - 1));
+        }
+        vertices.remove(v.getPosition());
+        // make the vertex invalid
+        v.setPosition(null);
+    }
+
+    public void removeEdge(Edge<E> e) {
+        Vertex<V>[] verts = e.getEndpoints();
+        verts[0].getOutgoing().remove(verts[1]);
+        verts[1].getIncoming().remove(verts[0]);
+        unlink(verts[0], e.incidenceIndex[0]);
+        if (verts[1] != verts[0]) {
+            unlink(verts[1], e.incidenceIndex[1]);
+        }
+        edges.remove(e.getPosition());
+        // make the edge invalid
+        e.setPosition(null);
+    }
+
+    public Vertex<V> opposite(Vertex<V> v, Edge<E> e) {
+        Vertex<V>[] endpoints = e.getEndpoints();
+        if (endpoints[0] == v)
+            return endpoints[1];
+        else if (endpoints[1] == v)
+            return endpoints[0];
+        else
+            return null; // v is not incident to this edge
+    }
+
+    public Edge<E> insertEdge(Vertex<V> u, Vertex<V> v, E element)  {
+        if (getEdge(u, v) == null) {
+            Edge<E> e = new Edge<>(u, v, element);
+            e.setPosition(edges.addLast(e));
+            u.getOutgoing().put(v, e);
+            v.getIncoming().put(u, e);
+            link(u, e, 0);
+            if (v != u) {
+                link(v, e, 1);
+            }
+            return e;
+        } else {
+            return null;
+        }
+    }
+
+    private void link(Vertex<V> v, Edge<E> e, int end) {
+        e.incidenceIndex[end] = v.incidence.size();
+        v.incidence.add(e);
+    }
+
+    /**
+     * Removes the edge at position i of the incidence list of v by moving the
+     * last edge into its place
+     */
+    private void unlink(Vertex<V> v, int i) {
+        var last = v.incidence.remove(v.incidence.size() - 1);
+        if (i < v.incidence.size()) {
+            v.incidence.set(i, last);
+            last.incidenceIndex[last.endpoints[0] == v ? 0 : 1] = i;
+        }
+    }
+
+    public PositionalLinkedList<Vertex<V>> getVertices() {
+        return vertices;
+    }
+
+    public PositionalLinkedList<Edge<E>> getEdges() {
+        return edges;
+    }
+}
+
+/**
+ *  An immutable compressed sparse row (CSR) snapshot of the airport graph for routing.
+ *
+ *  Terminals get dense IDs in the order they appear in the AdjacencyMap. The shuttles
+ *  incident to terminal u sit in slots offsets[u] .. offsets[u + 1] - 1 of the flat
+ *  targets, times and shuttleIds arrays, once for each direction since shuttles are
+ *  bidirectional.
+ *
+ *  Closing a shuttle does not rebuild the arrays: withoutShuttles returns a copy that
+ *  shares them and only marks the shuttle as closed.
+ */
+class CompactGraph {
+    final AirportBase.TerminalBase[] terminals;
+    final int[] waiting;
+    final int[] offsets;
+    final int[] targets;
+    final int[] times;
+    final int[] shuttleIds;
+    final long version; // the airport's graph version when the adjacency map was frozen
+    final int maxWeight; // bounds the weight of any shuttle, in either direction
+    private final AirportBase.ShuttleBase[] shuttles;
+    private final Map<AirportBase.TerminalBase, Integer> ids;
+    private final long[] closed;
+
+    private CompactGraph(AirportBase.TerminalBase[] terminals, int[] waiting, int[] offsets, int[] targets,
+                         int[] times, int[] shuttleIds, long version, int maxWeight,
+                         AirportBase.ShuttleBase[] shuttles, Map<AirportBase.TerminalBase, Integer> ids,
+                         long[] closed) {
+        this.terminals = terminals;
+        this.waiting = waiting;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.times = times;
+        this.shuttleIds = shuttleIds;
+        this.version = version;
+        this.maxWeight = maxWeight;
+        this.shuttles = shuttles;
+        this.ids = ids;
+        this.closed = closed;
+    }
+
+    /**
+     * Freezes the adjacency map into a new snapshot
+     *
+     * @param map          the airport graph
+     * @param shuttleBound one more than the largest shuttle ID in use
+     * @param version      the airport's graph version
+     * @return the snapshot
+     */
+    static CompactGraph of(AdjacencyMap<AirportBase.TerminalBase, AirportBase.ShuttleBase> map, int shuttleBound,
+                           long version) {
+        var vertices = new ArrayList<AdjacencyMap<AirportBase.TerminalBase,
+                AirportBase.ShuttleBase>.Vertex<AirportBase.TerminalBase>>(map.getVertices().size());
+        map.getVertices().forEach(vertices::add);
+
+        int n = vertices.size();
+        var terminals = new AirportBase.TerminalBase[n];
+        int[] waiting = new int[n];
+        int[] offsets = new int[n + 1];
+        Map<AirportBase.TerminalBase, Integer> ids = new HashMap<>(n * 2);
+        int maxWaiting = 0;
+        for (int u = 0; u < n; u++) {
+            var vertex = vertices.get(u);
+            terminals[u] = vertex.getElement();
+            waiting[u] = terminals[u].getWaitingTime();
+            maxWaiting = Math.max(maxWaiting, waiting[u]);
+            offsets[u + 1] = offsets[u] + map.degree(vertex);
+            ids.put(terminals[u], u);
+        }
+
+        int[] targets = new int[offsets[n]];
+        int[] times = new int[offsets[n]];
+        int[] shuttleIds = new int[offsets[n]];
+        var shuttles = new AirportBase.ShuttleBase[shuttleBound];
+        int maxTime = 0;
+        for (int u = 0; u < n; u++) {
+            var vertex = vertices.get(u);
+            for (int i = 0, slot = offsets[u]; i < map.degree(vertex); i++, slot++) {
+                var e = map.incidentEdge(vertex, i);
+                var shuttle = (Airport.Shuttle) e.getElement();
+                targets[slot] = ids.get(map.opposite(vertex, e).getElement());
+                times[slot] = shuttle.getTime();
+                maxTime = Math.max(maxTime, times[slot]);
+                shuttleIds[slot] = shuttle.getId();
+                shuttles[shuttle.getId()] = shuttle;
+            }
+        }
+
+        int maxWeight = (int) Math.min(Integer.MAX_VALUE, (long) maxTime + maxWaiting);
+        return new CompactGraph(terminals, waiting, offsets, targets, times, shuttleIds, version, maxWeight,
+                shuttles, ids, new long[(shuttleBound + 63) >>> 6]);
+    }
+
+    public int size() {
+        return terminals.length;
+    }
+
+    /**
+     * Returns the dense ID of a terminal
+     *
+     * @param terminal the terminal
+     * @return its ID, or -1 if it is not part of this snapshot
+     */
+    public int indexOf(AirportBase.TerminalBase terminal) {
+        Integer id = terminal == null ? null : ids.get(terminal);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the slot of the shuttle from u to v
+     *
+     * @param u a terminal ID
+     * @param v a terminal ID
+     * @return the slot in the row of u, or -1 if no shuttle joins them
+     */
+    public int slotBetween(int u, int v) {
+        for (int slot = offsets[u]; slot < offsets[u + 1]; slot++) {
+            if (targets[slot] == v) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public AirportBase.ShuttleBase shuttle(int shuttleId) {
+        return shuttles[shuttleId];
+    }
+
+    /**
+     * Returns one more than the largest shuttle ID this snapshot may hold
+     */
+    public int shuttleBound() {
+        return shuttles.length;
+    }
+
+    /**
+     * Writes the snapshot, with its closed shuttles and the ends of every
+     * shuttle, for SnapshotFile
+     *
+     * @param out the stream
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(terminals.length);
+        for (int u = 0; u < terminals.length; u++) {
+            SnapshotFile.writeString(out, terminals[u].getId());
+            out.writeInt(waiting[u]);
+        }
+        SnapshotFile.writeInts(out, offsets);
+        SnapshotFile.writeInts(out, targets);
+        SnapshotFile.writeInts(out, times);
+        SnapshotFile.writeInts(out, shuttleIds);
+        out.writeInt(shuttles.length);
+        for (var shuttle : shuttles) {
+            if (shuttle == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(ids.get(shuttle.getOrigin()));
+                out.writeInt(ids.get(shuttle.getDestination()));
+                out.writeInt(shuttle.getTime());
+            }
+        }
+        SnapshotFile.writeLongs(out, closed);
+    }
+
+    /**
+     * Reads a snapshot written by writeTo, with new terminal and shuttle objects
+     *
+     * @param in      the buffer
+     * @param version the graph version to give the snapshot
+     * @return the snapshot
+     */
+    static CompactGraph readFrom(ByteBuffer in, long version) throws IOException {
+        int n = in.getInt();
+        var terminals = new AirportBase.TerminalBase[n];
+        int[] waiting = new int[n];
+        Map<AirportBase.TerminalBase, Integer> ids = new HashMap<>(n * 2);
+        int maxWaiting = 0;
+        for (int u = 0; u < n; u++) {
+            terminals[u] = new Airport.Terminal(SnapshotFile.readString(in), in.getInt());
+            waiting[u] = terminals[u].getWaitingTime();
+            maxWaiting = Math.max(maxWaiting, waiting[u]);
+            ids.put(terminals[u], u);
+        }
+        int[] offsets = SnapshotFile.readInts(in);
+        int[] targets = SnapshotFile.readInts(in);
+        int[] times = SnapshotFile.readInts(in);
+        int[] shuttleIds = SnapshotFile.readInts(in);
+        var shuttles = new AirportBase.ShuttleBase[in.getInt()];
+        for (int id = 0; id < shuttles.length; id++) {
+            int origin = in.getInt();
+            if (origin >= 0) {
+                shuttles[id] = new Airport.Shuttle(terminals[origin], terminals[in.getInt()], in.getInt(), id);
+            }
+        }
+        long[] closed = SnapshotFile.readLongs(in);
+        int maxTime = 0;
+        for (int time : times) {
+            maxTime = Math.max(maxTime, time);
+        }
+        int maxWeight = (int) Math.min(Integer.MAX_VALUE, (long) maxTime + maxWaiting);
+        return new CompactGraph(terminals, waiting, offsets, targets, times, shuttleIds, version, maxWeight,
+                shuttles, ids, closed);
+    }
+
+    /**
+     * Tells whether the shuttle stored in a slot can still be travelled on
+     *
+     * @param slot the slot
+     * @return false if the shuttle was closed after this snapshot was built
+     */
+    public boolean isOpen(int slot) {
+        int id = shuttleIds[slot];
+        return (closed[id >>> 6] & (1L << id)) == 0;
+    }
+
+    /**
+     * Returns the open shuttles of a terminal as a read-only list backed by the
+     * snapshot. Only a row with closed shuttles in it needs an array of its open
+     * slots.
+     *
+     * @param u the terminal ID, or -1 for a terminal not in the snapshot
+     * @return the shuttles
+     */
+    List<AirportBase.ShuttleBase> shuttlesOf(int u) {
+        if (u < 0) {
+            return Collections.emptyList();
+        }
+        int from = offsets[u];
+        int to = offsets[u + 1];
+        int open = 0;
+        for (int slot = from; slot < to; slot++) {
+            if (isOpen(slot)) {
+                open++;
+            }
+        }
+        int[] slots = null;
+        if (open < to - from) {
+            slots = new int[open];
+            for (int slot = from, i = 0; slot < to; slot++) {
+                if (isOpen(slot)) {
+                    slots[i++] = slot;
+                }
+            }
+        }
+        int[] openSlots = slots;
+        int size = open;
+        return new AbstractList<>() {
+            @Override
+            public AirportBase.ShuttleBase get(int i) {
+                Objects.checkIndex(i, size);
+                return shuttles[shuttleIds[openSlots == null ? from + i : openSlots[i]]];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Tells whether a shuttle is part of this snapshot and not closed
+     */
+    boolean runs(int shuttleId) {
+        return shuttleId < shuttles.length && shuttles[shuttleId] != null
+                && (closed[shuttleId >>> 6] & (1L << shuttleId)) == 0;
+    }
+
+    /**
+     * Returns the shuttles that could be travelled on in an older snapshot but
+     * were closed or removed since. Between snapshots of the same structure this
+     * only compares the closed shuttle bitsets.
+     *
+     * @param older a snapshot taken before this one
+     * @return the shuttle IDs
+     */
+    public int[] removedSince(CompactGraph older) {
+        var removed = new IntStack();
+        if (sameStructure(older)) {
+            for (int word = 0; word < closed.length; word++) {
+                for (long bits = closed[word] & ~older.closed[word]; bits != 0; bits &= bits - 1) {
+                    removed.push(word << 6 | Long.numberOfTrailingZeros(bits));
+                }
+            }
+        } else {
+            for (int id = 0; id < older.shuttles.length; id++) {
+                if (older.runs(id) && !runs(id)) {
+                    removed.push(id);
+                }
+            }
+        }
+        return removed.toArray();
+    }
+
+    /**
+     * Returns the shuttles added since an older snapshot that can be travelled on
+     *
+     * @param older a snapshot taken before this one
+     * @return the shuttle IDs
+     */
+    public int[] addedSince(CompactGraph older) {
+        var added = new IntStack();
+        for (int id = older.shuttles.length; id < shuttles.length; id++) {
+            if (runs(id)) {
+                added.push(id);
+            }
+        }
+        return added.toArray();
+    }
+
+    /**
+     * Tells whether another snapshot has the same terminals and shuttle slots,
+     * that is it only differs from this one by the shuttles it has closed
+     *
+     * @param other the other snapshot
+     * @return true if terminal IDs and slots mean the same in both
+     */
+    public boolean sameStructure(CompactGraph other) {
+        return other != null && other.offsets == offsets;
+    }
+
+    /**
+     * Returns a copy of this snapshot where the given shuttles are closed
+     *
+     * @param closing the shuttles to close
+     * @return the patched snapshot
+     */
+    public CompactGraph withoutShuttles(int... closing) {
+        long[] patched = null;
+        for (int shuttleId : closing) {
+            if (shuttleId < 0 || shuttleId >= shuttles.length || shuttles[shuttleId] == null) {
+                continue; // not part of this snapshot
+            }
+            if (patched == null) {
+                patched = closed.clone();
+            }
+            patched[shuttleId >>> 6] |= 1L << shuttleId;
+        }
+        if (patched == null) {
+            return this;
+        }
+        return new CompactGraph(terminals, waiting, offsets, targets, times, shuttleIds, version, maxWeight,
+                shuttles, ids, patched);
+    }
+}
+
+/**
+ *  Scratch state of one search over a CompactGraph, reused across queries.
+ *
+ *  The arrays grow to the largest graph searched so far and are never cleared:
+ *  the entries of terminal v only count when its reached stamp equals the
+ *  current generation, so starting a new search is O(1). For a reached v other
+ *  than the source, parent[v] is its predecessor and via[v] the slot of the
+ *  shuttle taken from it.
+ */
+class SearchSpace {
+    int[] distance = new int[0];
+    int[] parent = new int[0];
+    int[] via = new int[0];
+    int[] queue = new int[0];
+    final IndexedIntHeap heap = new IndexedIntHeap();
+    final BucketQueue buckets = new BucketQueue();
+    private int[] reached = new int[0];
+    private int[] settled = new int[0];
+    private int generation;
+
+    /**
+     * Starts a new search over n terminals
+     *
+     * @param n number of terminals
+     */
+    void reset(int n) {
+        if (reached.length < n) {
+            int length = Math.max(n, reached.length * 2);
+            distance = new int[length];
+            parent = new int[length];
+            via = new int[length];
+            queue = new int[length];
+            reached = new int[length];
+            settled = new int[length];
+        }
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+        heap.clear();
+    }
+
+    boolean isReached(int v) {
+        return reached[v] == generation;
+    }
+
+    boolean isSettled(int v) {
+        return settled[v] == generation;
+    }
+
+    /**
+     * Records a (better) way to reach v
+     */
+    void reach(int v, int d, int p, int slot) {
+        reached[v] = generation;
+        distance[v] = d;
+        parent[v] = p;
+        via[v] = slot;
+    }
+
+    void settle(int v) {
+        settled[v] = generation;
+    }
+
+    int distanceTo(int v) {
+        return isReached(v) ? distance[v] : Integer.MAX_VALUE;
+    }
+}
+
+/**
+ *  A min priority queue of int handles (terminal IDs) with int keys
+ */
+interface IntPriorityQueue {
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+
+    boolean contains(int handle);
+
+    void insert(int handle, int key);
+
+    void decreaseKey(int handle, int key);
+
+    int minKey();
+
+    int removeMin();
+}
+
+/**
+ *  A d-ary min heap of int handles (terminal IDs) with int keys, d being 2, 4
+ *  or 8. Wider heaps are shallower, so inserting and decreasing keys move an
+ *  entry up fewer levels, and the children compared when moving down sit next
+ *  to each other in memory. position maps a handle to its index in the heap so
+ *  keys can be decreased in place; it is validated against the heap itself, so
+ *  clearing the heap is O(1).
+ */
+class IndexedIntHeap implements IntPriorityQueue {
+    static final int DEFAULT_ARITY = 4;
+
+    private final int shift; // log2 of the arity
+    private int[] handles = new int[16];
+    private int[] keys = new int[16];
+    private int[] position = new int[16];
+    private int size;
+
+    IndexedIntHeap() {
+        this(DEFAULT_ARITY);
+    }
+
+    /**
+     * @param arity the number of children of each node: 2, 4 or 8
+     */
+    IndexedIntHeap(int arity) {
+        if (arity != 2 && arity != 4 && arity != 8) {
+            throw new IllegalArgumentException("arity must be 2, 4 or 8");
+        }
+        shift = Integer.numberOfTrailingZeros(arity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean contains(int handle) {
+        if (handle >= position.length) {
+            return false;
+        }
+        int j = position[handle];
+        return j < size && handles[j] == handle;
+    }
+
+    public void insert(int handle, int key) {
+        append(handle, key);
+        upHeap(size - 1);
+    }
+
+    /**
+     * Adds a handle without restoring the heap order; call heapify once all
+     * are added. Filling a heap this way is O(n) instead of O(n log n).
+     */
+    public void append(int handle, int key) {
+        if (size == handles.length) {
+            handles = Arrays.copyOf(handles, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        if (handle >= position.length) {
+            position = Arrays.copyOf(position, Math.max(handle + 1, position.length * 2));
+        }
+        handles[size] = handle;
+        keys[size] = key;
+        position[handle] = size++;
+    }
+
+    /**
+     * Restores the heap order after append, bottom up
+     */
+    public void heapify() {
+        for (int j = size == 0 ? -1 : (size - 2) >> shift; j >= 0; j--) {
+            downHeap(j);
+        }
+    }
+
+    public void decreaseKey(int handle, int key) {
+        int j = position[handle];
+        keys[j] = key;
+        upHeap(j);
+    }
+
+    /**
+     * Sets the key of a handle in the heap, moving it up or down as needed
+     */
+    public void updateKey(int handle, int key) {
+        int j = position[handle];
+        int old = keys[j];
+        keys[j] = key;
+        if (key < old) {
+            upHeap(j);
+        } else {
+            downHeap(j);
+        }
+    }
+
+    public int minKey() {
+        return keys[0];
+    }
+
+    public int removeMin() {
+        int min = handles[0];
+        size--;
+        if (size > 0) {
+            move(size, 0);
+            downHeap(0);
+        }
+        return min;
+    }
+
+    private void move(int from, int to) {
+        handles[to] = handles[from];
+        keys[to] = keys[from];
+        position[handles[to]] = to;
+    }
+
+    private void upHeap(int j) {
+        int handle = handles[j];
+        int key = keys[j];
+        while (j > 0) {
+            int p = (j - 1) >> shift;
+            if (keys[p] <= key) break;
+            move(p, j);
+            j = p;
+        }
+        handles[j] = handle;
+        keys[j] = key;
+        position[handle] = j;
+    }
+
+    private void downHeap(int j) {
+        int handle = handles[j];
+        int key = keys[j];
+        while (true) {
+            int first = (j << shift) + 1;
+            if (first >= size) break;
+            int last = Math.min(first + (1 << shift), size);
+            int child = first;
+            for (int c = first + 1; c < last; c++) {
+                if (keys[c] < keys[child]) {
+                    child = c;
+                }
+            }
+            if (keys[child] >= key) break;
+            move(child, j);
+            j = child;
+        }
+        handles[j] = handle;
+        keys[j] = key;
+        position[handle] = j;
+    }
+}
+
+/**
+ *  Dial's bucket queue: a monotone priority queue for Dijkstra's algorithm with
+ *  small integer weights. Keys start from 0, and while every key in the queue
+ *  lies within width of the last key removed, a circular array of width buckets holds each key in bucket
+ *  key % width, so insert and decreaseKey are O(1) and removeMin only walks the
+ *  buckets up to the next non-empty one. Buckets are doubly linked lists through
+ *  the next and previous arrays, and both buckets and handles are validated by a
+ *  generation stamp so reset is O(1).
+ */
+class BucketQueue implements IntPriorityQueue {
+    static final int MAX_WIDTH = 1 << 16;
+
+    private int[] first = new int[0];       // head handle of each bucket
+    private int[] bucketStamp = new int[0];
+    private int[] next = new int[16];
+    private int[] previous = new int[16];
+    private int[] keys = new int[16];
+    private int[] stamp = new int[16];      // generation if the handle is queued
+    private int generation = 1;
+    private int width = 1;
+    private int size;
+    private int current;                    // the last key removed, no queued key is smaller
+
+    /**
+     * Empties the queue and sizes it for keys within width of each other
+     *
+     * @param width one more than the largest weight of the graph searched
+     */
+    void reset(int width) {
+        if (width > first.length) {
+            first = new int[Math.max(width, first.length * 2)];
+            bucketStamp = new int[first.length];
+        }
+        this.width = width;
+        clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            Arrays.fill(bucketStamp, 0);
+            generation = 1;
+        }
+        size = 0;
+        current = 0;
+    }
+
+    public boolean contains(int handle) {
+        return handle < stamp.length && stamp[handle] == generation;
+    }
+
+    public void insert(int handle, int key) {
+        if (handle >= stamp.length) {
+            int length = Math.max(handle + 1, stamp.length * 2);
+            next = Arrays.copyOf(next, length);
+            previous = Arrays.copyOf(previous, length);
+            keys = Arrays.copyOf(keys, length);
+            stamp = Arrays.copyOf(stamp, length);
+        }
+        stamp[handle] = generation;
+        keys[handle] = key;
+        link(handle);
+        size++;
+    }
+
+    public void decreaseKey(int handle, int key) {
+        unlink(handle);
+        keys[handle] = key;
+        link(handle);
+    }
+
+    public int minKey() {
+        return keys[first[advance()]];
+    }
+
+    public int removeMin() {
+        int handle = first[advance()];
+        unlink(handle);
+        stamp[handle] = 0;
+        size--;
+        return handle;
+    }
+
+    /**
+     * Moves current up to the smallest queued key
+     *
+     * @return its bucket
+     */
+    private int advance() {
+        int bucket = current % width;
+        while (bucketStamp[bucket] != generation || first[bucket] < 0) {
+            current++;
+            bucket = bucket + 1 == width ? 0 : bucket + 1;
+        }
+        return bucket;
+    }
+
+    private void link(int handle) {
+        int bucket = keys[handle] % width;
+        int head = bucketStamp[bucket] == generation ? first[bucket] : -1;
+        next[handle] = head;
+        previous[handle] = -1;
+        if (head >= 0) {
+            previous[head] = handle;
+        }
+        first[bucket] = handle;
+        bucketStamp[bucket] = generation;
+    }
+
+    private void unlink(int handle) {
+        if (previous[handle] >= 0) {
+            next[previous[handle]] = next[handle];
+        } else {
+            first[keys[handle] % width] = next[handle];
+        }
+        if (next[handle] >= 0) {
+            previous[next[handle]] = previous[handle];
+        }
+    }
+}
+
+/**
+ *  The scratch state a thread reuses for all of its route queries
+ */
+class SearchWorkspace {
+    final SearchSpace forward = new SearchSpace();
+    final SearchSpace backward = new SearchSpace();
+    final SearchStats stats = new SearchStats();
+    final SearchStats sampled = new SearchStats(); // the searches of a sampled query, added up
+    final IntStack route = new IntStack();
+    final IntStack unpacked = new IntStack();
+    final IntStack pending = new IntStack();
+}
+
+/**
+ *  A growable stack of ints
+ */
+class IntStack {
+    private int[] values = new int[16];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void push(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int pop() {
+        return values[--size];
+    }
+
+    public int get(int i) {
+        return values[i];
+    }
+
+    public void set(int i, int value) {
+        values[i] = value;
+    }
+
+    /**
+     * Drops everything above the first size values
+     */
+    public void truncate(int size) {
+        this.size = size;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
+
+/**
+ *  A route as found by a search: terminal IDs in the order travelled, the IDs
+ *  of the shuttles between them and the total time. It serves as the terminal list of the Path handed
+ *  to callers and only looks a terminal up when it is read.
+ */
+class CompactRoute extends AbstractList<AirportBase.TerminalBase> implements RandomAccess {
+    private final AirportBase.TerminalBase[] names;
+    final int[] terminals;
+    final int[] shuttles;
+    final int time;
+
+    /**
+     * @param names     the terminals of the snapshot routed on, by terminal ID
+     * @param terminals the terminal IDs in the order travelled
+     * @param shuttles  the shuttle IDs, shuttles[i] going from terminals[i] to terminals[i + 1]
+     * @param time      the total time spent travelling and waiting along the route
+     */
+    CompactRoute(AirportBase.TerminalBase[] names, int[] terminals, int[] shuttles, int time) {
+        this.names = names;
+        this.terminals = terminals;
+        this.shuttles = shuttles;
+        this.time = time;
+    }
+
+    @Override
+    public AirportBase.TerminalBase get(int index) {
+        return names[terminals[index]];
+    }
+
+    @Override
+    public int size() {
+        return terminals.length;
+    }
+}
+
+/**
+ *  Landmark distance tables for A* over a CompactGraph (the ALT algorithm).
+ *
+ *  For every terminal v and landmark l the tables hold d(l, v) and d(v, l). By the
+ *  triangle inequality d(v, t) is at least d(l, t) - d(l, v) and d(v, l) - d(t, l),
+ *  and the largest of those bounds is a consistent A* heuristic. Distances are not
+ *  symmetric because the waiting time is paid at the terminal a shuttle is boarded at.
+ */
+class LandmarkIndex {
+    static final int DEFAULT_LANDMARKS = 8;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final CompactGraph graph;
+    private final int count;
+    private final int[] from; // from[v * count + l] = d(landmark l, v)
+    private final int[] to;   // to[v * count + l] = d(v, landmark l)
+
+    private LandmarkIndex(CompactGraph graph, int count) {
+        this.graph = graph;
+        this.count = count;
+        this.from = new int[graph.size() * count];
+        this.to = new int[graph.size() * count];
+    }
+
+    /**
+     * Picks landmarks by farthest selection and computes their distance tables.
+     * Each new landmark is the terminal farthest from the ones already chosen, so
+     * landmarks end up on the edges of the network (and in every component).
+     *
+     * @param g         the snapshot
+     * @param landmarks the number of landmarks wanted
+     * @return the tables
+     */
+    static LandmarkIndex build(CompactGraph g, int landmarks) {
+        int n = g.size();
+        var index = new LandmarkIndex(g, Math.min(landmarks, n));
+        var space = new SearchSpace();
+        var stats = new SearchStats();
+        int[] nearest = new int[n]; // distance to the closest landmark so far
+        Arrays.fill(nearest, UNREACHABLE);
+
+        int landmark = 0;
+        if (n > 0) {
+            // start from the terminal farthest away from an arbitrary one
+            GraphUtilities.fastestPathDijkstra(g, 0, -1, false, space, stats);
+            for (int v = 0; v < n; v++) {
+                if (space.isReached(v) && space.distance[v] > space.distanceTo(landmark)) {
+                    landmark = v;
+                }
+            }
+        }
+        for (int l = 0; l < index.count; l++) {
+            GraphUtilities.fastestPathDijkstra(g, landmark, -1, false, space, stats);
+            for (int v = 0; v < n; v++) {
+                index.from[v * index.count + l] = space.distanceTo(v);
+            }
+            GraphUtilities.fastestPathDijkstra(g, landmark, -1, true, space, stats);
+            for (int v = 0; v < n; v++) {
+                index.to[v * index.count + l] = space.distanceTo(v);
+                nearest[v] = Math.min(nearest[v], index.from[v * index.count + l]);
+            }
+            nearest[landmark] = 0;
+            int next = landmark;
+            for (int v = 0; v < n; v++) {
+                if (nearest[v] > nearest[next]) {
+                    next = v;
+                }
+            }
+            landmark = next;
+        }
+        return index;
+    }
+
+    /**
+     * Tells whether the tables can be used to route on a snapshot
+     *
+     * @param g the snapshot
+     * @return true if g only differs from the indexed snapshot by closed shuttles
+     */
+    boolean covers(CompactGraph g) {
+        return graph.sameStructure(g);
+    }
+
+    /**
+     * Writes the tables
+     *
+     * @param out the stream
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        SnapshotFile.writeInts(out, from);
+        SnapshotFile.writeInts(out, to);
+    }
+
+    /**
+     * Reads tables written by writeTo for the snapshot they were built on
+     *
+     * @param g  the snapshot read alongside them
+     * @param in the buffer
+     * @return the tables
+     */
+    static LandmarkIndex readFrom(CompactGraph g, ByteBuffer in) throws IOException {
+        var index = new LandmarkIndex(g, in.getInt());
+        SnapshotFile.readInts(in, index.from);
+        SnapshotFile.readInts(in, index.to);
+        return index;
+    }
+
+    /**
+     * Returns a lower bound of the time needed to get from v to t
+     *
+     * @param v the terminal ID to route from
+     * @param t the terminal ID to route to
+     * @return the lower bound, 0 when no landmark helps
+     */
+    int lowerBound(int v, int t) {
+        int bound = 0;
+        int vi = v * count;
+        int ti = t * count;
+        for (int l = 0; l < count; l++) {
+            int lt = from[ti + l];
+            int lv = from[vi + l];
+            if (lt != UNREACHABLE && lv != UNREACHABLE && lt - lv > bound) {
+                bound = lt - lv;
+            }
+            int vl = to[vi + l];
+            int tl = to[ti + l];
+            if (vl != UNREACHABLE && tl != UNREACHABLE && vl - tl > bound) {
+                bound = vl - tl;
+            }
+        }
+        return bound;
+    }
+}
+
+/**
+ *  A customizable contraction hierarchy over a CompactGraph.
+ *
+ *  Terminals are contracted in minimum degree order. Contracting a terminal joins
+ *  all of its remaining neighbours with shortcuts, whatever the shuttle times are,
+ *  so the shortcut topology only depends on the graph structure. Every arc joins a
+ *  terminal to a higher ranked one and is stored with the lower ranked end, with a
+ *  weight for each direction.
+ *
+ *  The weights come from customise, which walks the terminals bottom up and lowers
+ *  each arc through the triangles below it. Closing shuttles therefore only needs a
+ *  new customisation, not a new contraction.
+ */
+class ContractionHierarchy {
+    static final int INFINITY = Integer.MAX_VALUE;
+
+    private final CompactGraph graph;
+    final int[] rank;
+    private final int[] order;        // terminal IDs by rank
+    final int[] upOffsets;
+    final int[] upTargets;            // higher ranked ends, sorted by ID within a terminal
+    private final int[] shuttleSlots; // slot of the shuttle joining the two ends, -1 if there is none
+    final int[] upWeight;             // time from the lower to the higher ranked end
+    final int[] downWeight;           // time from the higher to the lower ranked end
+    private final int[] upMiddle;     // terminal the upward route goes through, -1 for a shuttle
+    private final int[] downMiddle;
+
+    private ContractionHierarchy(CompactGraph graph, int[] rank, int[] order, int[] upOffsets, int[] upTargets,
+                                 int[] shuttleSlots) {
+        this.graph = graph;
+        this.rank = rank;
+        this.order = order;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.shuttleSlots = shuttleSlots;
+        this.upWeight = new int[upTargets.length];
+        this.downWeight = new int[upTargets.length];
+        this.upMiddle = new int[upTargets.length];
+        this.downMiddle = new int[upTargets.length];
+    }
+
+    /**
+     * Contracts the snapshot and customises the result for it
+     *
+     * @param g the snapshot
+     * @return the hierarchy
+     */
+    static ContractionHierarchy build(CompactGraph g) {
+        int n = g.size();
+        List<Set<Integer>> neighbours = new ArrayList<>(n);
+        var heap = new IndexedIntHeap();
+        for (int u = 0; u < n; u++) {
+            Set<Integer> adjacent = new HashSet<>();
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                adjacent.add(g.targets[slot]);
+            }
+            neighbours.add(adjacent);
+            heap.insert(u, adjacent.size());
+        }
+
+        int[] rank = new int[n];
+        int[] order = new int[n];
+        int[][] upper = new int[n][];
+        for (int r = 0; r < n; r++) {
+            int v = heap.removeMin();
+            rank[v] = r;
+            order[r] = v;
+            upper[v] = neighbours.get(v).stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int a : upper[v]) {
+                var adjacent = neighbours.get(a);
+                adjacent.remove(v);
+                for (int b : upper[v]) {
+                    if (b != a) {
+                        adjacent.add(b); // shortcut a - b
+                    }
+                }
+                heap.updateKey(a, adjacent.size());
+            }
+            neighbours.set(v, null);
+        }
+
+        int[] upOffsets = new int[n + 1];
+        for (int u = 0; u < n; u++) {
+            upOffsets[u + 1] = upOffsets[u] + upper[u].length;
+        }
+        int[] upTargets = new int[upOffsets[n]];
+        for (int u = 0; u < n; u++) {
+            System.arraycopy(upper[u], 0, upTargets, upOffsets[u], upper[u].length);
+        }
+        int[] shuttleSlots = new int[upTargets.length];
+        Arrays.fill(shuttleSlots, -1);
+        for (int u = 0; u < n; u++) {
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int w = g.targets[slot];
+                if (rank[u] < rank[w]) {
+                    shuttleSlots[arc(upOffsets, upTargets, u, w)] = slot;
+                }
+            }
+        }
+
+        return new ContractionHierarchy(g, rank, order, upOffsets, upTargets, shuttleSlots).customised(g);
+    }
+
+    /**
+     * Writes the contraction; the weights are customised again when read
+     *
+     * @param out the stream
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        SnapshotFile.writeInts(out, rank);
+        SnapshotFile.writeInts(out, order);
+        SnapshotFile.writeInts(out, upOffsets);
+        SnapshotFile.writeInts(out, upTargets);
+        SnapshotFile.writeInts(out, shuttleSlots);
+    }
+
+    /**
+     * Reads a contraction written by writeTo and customises it
+     *
+     * @param g  the snapshot read alongside it
+     * @param in the buffer
+     * @return the hierarchy
+     */
+    static ContractionHierarchy readFrom(CompactGraph g, ByteBuffer in) throws IOException {
+        return new ContractionHierarchy(g, SnapshotFile.readInts(in), SnapshotFile.readInts(in),
+                SnapshotFile.readInts(in), SnapshotFile.readInts(in), SnapshotFile.readInts(in)).customised(g);
+    }
+
+    /**
+     * Computes the arc weights for the current shuttles of a snapshot, keeping
+     * the contraction order and shortcuts of this hierarchy
+     *
+     * @param g a snapshot this hierarchy covers
+     * @return a new hierarchy sharing the topology of this one
+     */
+    ContractionHierarchy customise(CompactGraph g) {
+        return new ContractionHierarchy(g, rank, order, upOffsets, upTargets, shuttleSlots).customised(g);
+    }
+
+    private ContractionHierarchy customised(CompactGraph g) {
+        Arrays.fill(upMiddle, -1);
+        Arrays.fill(downMiddle, -1);
+        for (int v = 0; v < rank.length; v++) {
+            for (int k = upOffsets[v]; k < upOffsets[v + 1]; k++) {
+                int slot = shuttleSlots[k];
+                if (slot >= 0 && g.isOpen(slot)) {
+                    upWeight[k] = g.times[slot] + g.waiting[v];
+                    downWeight[k] = g.times[slot] + g.waiting[upTargets[k]];
+                } else {
+                    upWeight[k] = INFINITY;
+                    downWeight[k] = INFINITY;
+                }
+            }
+        }
+
+        // arcs of v are final once every lower triangle below them was seen
+        for (int v : order) {
+            for (int i = upOffsets[v]; i < upOffsets[v + 1]; i++) {
+                int a = upTargets[i];
+                int k = upOffsets[a];
+                for (int j = upOffsets[v]; j < upOffsets[v + 1]; j++) {
+                    int b = upTargets[j];
+                    if (rank[a] >= rank[b]) {
+                        continue;
+                    }
+                    // both lists are sorted and a's contains b, so walk them together
+                    while (upTargets[k] != b) {
+                        k++;
+                    }
+                    if (downWeight[i] != INFINITY && upWeight[j] != INFINITY
+                            && downWeight[i] + upWeight[j] < upWeight[k]) {
+                        upWeight[k] = downWeight[i] + upWeight[j];   // a -> v -> b
+                        upMiddle[k] = v;
+                    }
+                    if (downWeight[j] != INFINITY && upWeight[i] != INFINITY
+                            && downWeight[j] + upWeight[i] < downWeight[k]) {
+                        downWeight[k] = downWeight[j] + upWeight[i]; // b -> v -> a
+                        downMiddle[k] = v;
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    private static int arc(int[] upOffsets, int[] upTargets, int lower, int higher) {
+        return Arrays.binarySearch(upTargets, upOffsets[lower], upOffsets[lower + 1], higher);
+    }
+
+    /**
+     * Tells whether the hierarchy was contracted from the structure of a snapshot
+     *
+     * @param g the snapshot
+     * @return true if g only differs from the contracted snapshot by closed shuttles
+     */
+    boolean covers(CompactGraph g) {
+        return graph.sameStructure(g);
+    }
+
+    boolean isCustomisedFor(CompactGraph g) {
+        return graph == g;
+    }
+
+    public int size() {
+        return rank.length;
+    }
+
+    /**
+     * Expands the arc from x to y into the shuttles it stands for, pushing a
+     * (slot, terminal) pair for each of them in the order travelled
+     *
+     * @param x       the terminal the arc leaves
+     * @param y       the terminal the arc arrives at
+     * @param out     receives the shuttle slots and the terminals they arrive at
+     * @param pending scratch stack
+     */
+    void unpack(int x, int y, IntStack out, IntStack pending) {
+        pending.clear();
+        pending.push(y);
+        pending.push(x);
+        while (!pending.isEmpty()) {
+            int from = pending.pop();
+            int to = pending.pop();
+            int k;
+            int middle;
+            if (rank[from] < rank[to]) {
+                k = arc(upOffsets, upTargets, from, to);
+                middle = upMiddle[k];
+            } else {
+                k = arc(upOffsets, upTargets, to, from);
+                middle = downMiddle[k];
+            }
+            if (middle < 0) {
+                out.push(shuttleSlots[k]);
+                out.push(to);
+            } else {
+                pending.push(to);
+                pending.push(middle);
+                pending.push(middle);
+                pending.push(from);
+            }
+        }
+    }
+}
+
+/**
+ *  All pairs route tables over a CompactGraph, for small airports.
+ *
+ *  Row i of a table describes the routes leaving terminal i: entry j holds the
+ *  slot, in the row of j, of the last shuttle on the route from i to j (so the
+ *  terminal before j is the target of that slot), or -1 if j is not reachable. A
+ *  route is read back from j in O(route length).
+ *
+ *  The fastest route table comes from a cache blocked Floyd-Warshall run on the
+ *  common fork join pool, the fewest shuttles table from a breadth first search
+ *  per row. Each table is only computed once it is first needed. When shuttles are
+ *  closed only the rows with a route over one of them are searched again.
+ *
+ *  Rows are never changed once published: computing and repairing synchronize
+ *  on the table and publish new Tables, sharing the rows they did not search
+ *  again, through a volatile field. Lookups read that field and take no lock.
+ */
+class RouteTable {
+    static final int MAX_TERMINALS = 2048;
+    private static final int BLOCK = 64;
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    /**
+     * The tables and the snapshot they are up to date with; a table is null
+     * until it is first needed
+     */
+    private static class Tables {
+        final CompactGraph graph;
+        final int[][] time;    // fastest route times
+        final int[][] fastest;
+        final int[][] fewest;
+
+        Tables(CompactGraph graph, int[][] time, int[][] fastest, int[][] fewest) {
+            this.graph = graph;
+            this.time = time;
+            this.fastest = fastest;
+            this.fewest = fewest;
+        }
+    }
+
+    private final int n;
+    private volatile Tables tables;
+
+    RouteTable(CompactGraph graph) {
+        this.n = graph.size();
+        this.tables = new Tables(graph, null, null, null);
+    }
+
+    /**
+     * Writes the tables computed so far
+     *
+     * @param out the stream
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        var t = tables;
+        SnapshotFile.writeInts(out, flatten(t.time));
+        SnapshotFile.writeInts(out, flatten(t.fastest));
+        SnapshotFile.writeInts(out, flatten(t.fewest));
+    }
+
+    /**
+     * Reads tables written by writeTo
+     *
+     * @param g  the snapshot read alongside them, which they are up to date with
+     * @param in the buffer
+     * @return the route table
+     */
+    static RouteTable readFrom(CompactGraph g, ByteBuffer in) throws IOException {
+        var table = new RouteTable(g);
+        int n = g.size();
+        var time = rows(SnapshotFile.readInts(in), n);
+        var fastest = rows(SnapshotFile.readInts(in), n);
+        var fewest = rows(SnapshotFile.readInts(in), n);
+        table.tables = new Tables(g, time, fastest, fewest);
+        return table;
+    }
+
+    private static int[] flatten(int[][] rows) {
+        if (rows == null) {
+            return null;
+        }
+        int n = rows.length;
+        int[] flat = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(rows[i], 0, flat, i * n, n);
+        }
+        return flat;
+    }
+
+    private static int[][] rows(int[] flat, int n) {
+        if (flat == null) {
+            return null;
+        }
+        int[][] rows = new int[n][];
+        for (int i = 0; i < n; i++) {
+            rows[i] = Arrays.copyOfRange(flat, i * n, (i + 1) * n);
+        }
+        return rows;
+    }
+
+    boolean covers(CompactGraph g) {
+        return tables.graph.sameStructure(g);
+    }
+
+    /**
+     * Brings the tables up to date with a snapshot that only differs from
+     * the one they were computed for by closed shuttles. Returns at once,
+     * without locking, if they are up to date already.
+     *
+     * @param g the current snapshot
+     */
+    void repair(CompactGraph g) {
+        if (tables.graph != g) {
+            repairTables(g);
+        }
+    }
+
+    private synchronized void repairTables(CompactGraph g) {
+        var t = tables;
+        if (t.graph == g) {
+            return;
+        }
+        int[][] time = t.time == null ? null : t.time.clone();
+        int[][] fastest = t.fastest == null ? null : t.fastest.clone();
+        int[][] fewest = t.fewest == null ? null : t.fewest.clone();
+        if (fastest != null) {
+            repairRows(g, fastest, time);
+        }
+        if (fewest != null) {
+            repairRows(g, fewest, null);
+        }
+        tables = new Tables(g, time, fastest, fewest);
+    }
+
+    private void repairRows(CompactGraph g, int[][] table, int[][] time) {
+        java.util.stream.IntStream.range(0, n).parallel().forEach(i -> {
+            for (int slot : table[i]) {
+                if (slot >= 0 && !g.isOpen(slot)) {
+                    searchRow(g, table, time, i);
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces one row with a single source search on the calling thread
+     *
+     * @param g     the snapshot to search
+     * @param table the table to put the row in
+     * @param time  the fastest route times to put the row in, or null to
+     *              search for the fewest shuttles
+     * @param i     the row
+     */
+    private void searchRow(CompactGraph g, int[][] table, int[][] time, int i) {
+        var workspace = GraphUtilities.workspace();
+        var space = workspace.forward;
+        if (time != null) {
+            GraphUtilities.fastestPathDijkstra(g, i, -1, space, workspace.stats);
+        } else {
+            GraphUtilities.shortestPathBFS(g, i, -1, space, workspace.stats);
+        }
+        int[] row = new int[n];
+        int[] times = time == null ? null : new int[n];
+        for (int j = 0; j < n; j++) {
+            if (j == i || !space.isReached(j)) {
+                row[j] = -1;
+                if (times != null) {
+                    times[j] = j == i ? 0 : INFINITY;
+                }
+                continue;
+            }
+            row[j] = g.slotBetween(j, space.parent[j]);
+            if (times != null) {
+                times[j] = space.distance[j];
+            }
+        }
+        table[i] = row;
+        if (time != null) {
+            time[i] = times;
+        }
+    }
+
+    /**
+     * Runs the blocked Floyd-Warshall algorithm and publishes the fastest
+     * route table, unless another thread did already
+     *
+     * @return the tables holding it
+     */
+    private synchronized Tables computeFastest() {
+        var t = tables;
+        if (t.fastest != null) {
+            return t;
+        }
+        var graph = t.graph;
+        int[][] time = new int[n][n];
+        int[][] fastest = new int[n][n];
+        for (int v = 0; v < n; v++) {
+            Arrays.fill(time[v], INFINITY);
+            Arrays.fill(fastest[v], -1);
+        }
+        for (int v = 0; v < n; v++) {
+            time[v][v] = 0;
+            for (int slot = graph.offsets[v]; slot < graph.offsets[v + 1]; slot++) {
+                int u = graph.targets[slot];
+                int weight = graph.times[slot] + graph.waiting[u];
+                if (graph.isOpen(slot) && u != v && weight < time[u][v]) {
+                    time[u][v] = weight;
+                    fastest[u][v] = slot;
+                }
+            }
+        }
+
+        // for every block of intermediate terminals the diagonal block is updated first,
+        // then the blocks sharing its rows or columns, then all the others; blocks within
+        // a phase are independent
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        for (int kb = 0; kb < blocks; kb++) {
+            int k = kb;
+            relaxBlock(time, fastest, k, k, k);
+            java.util.stream.IntStream.range(0, 2 * blocks).parallel().forEach(b -> {
+                if (b < blocks && b != k) {
+                    relaxBlock(time, fastest, k, b, k);  // row of the diagonal block
+                } else if (b >= blocks && b - blocks != k) {
+                    relaxBlock(time, fastest, b - blocks, k, k); // column of the diagonal block
+                }
+            });
+            java.util.stream.IntStream.range(0, blocks * blocks).parallel().forEach(b -> {
+                int ib = b / blocks;
+                int jb = b % blocks;
+                if (ib != k && jb != k) {
+                    relaxBlock(time, fastest, ib, jb, k);
+                }
+            });
+        }
+        t = new Tables(graph, time, fastest, t.fewest);
+        tables = t;
+        return t;
+    }
+
+    /**
+     * Relaxes the routes from the terminals of block ib to those of block jb
+     * through the terminals of block kb
+     */
+    private void relaxBlock(int[][] time, int[][] fastest, int ib, int jb, int kb) {
+        int iEnd = Math.min(n, (ib + 1) * BLOCK);
+        int jEnd = Math.min(n, (jb + 1) * BLOCK);
+        int kEnd = Math.min(n, (kb + 1) * BLOCK);
+        for (int k = kb * BLOCK; k < kEnd; k++) {
+            int[] timeK = time[k];
+            int[] fastestK = fastest[k];
+            for (int i = ib * BLOCK; i < iEnd; i++) {
+                int[] timeI = time[i];
+                int ik = timeI[k];
+                if (ik == INFINITY) {
+                    continue;
+                }
+                int[] fastestI = fastest[i];
+                for (int j = jb * BLOCK; j < jEnd; j++) {
+                    int kj = timeK[j];
+                    if (kj != INFINITY && ik + kj < timeI[j]) {
+                        timeI[j] = ik + kj;
+                        fastestI[j] = fastestK[j];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches every row of the fewest shuttles table and publishes it, unless
+     * another thread did already
+     *
+     * @return the tables holding it
+     */
+    private synchronized Tables computeFewest() {
+        var t = tables;
+        if (t.fewest != null) {
+            return t;
+        }
+        var graph = t.graph;
+        int[][] fewest = new int[n][];
+        java.util.stream.IntStream.range(0, n).parallel().forEach(i -> searchRow(graph, fewest, null, i));
+        t = new Tables(graph, t.time, t.fastest, fewest);
+        tables = t;
+        return t;
+    }
+
+    /**
+     * Writes the fastest route from src to dest into a search space, as if a
+     * search had found it
+     *
+     * @param src   the source terminal ID
+     * @param dest  the destination terminal ID
+     * @param space the search space to write the route to
+     * @param stats counters to fill in
+     */
+    void fastestRoute(int src, int dest, SearchSpace space, SearchStats stats) {
+        var t = tables;
+        if (t.fastest == null) {
+            t = computeFastest();
+        }
+        write(t.graph, t.fastest[src], src, dest, space, stats);
+    }
+
+    /**
+     * Writes the route from src to dest that takes the fewest shuttles into
+     * a search space, as if a search had found it
+     *
+     * @param src   the source terminal ID
+     * @param dest  the destination terminal ID
+     * @param space the search space to write the route to
+     * @param stats counters to fill in
+     */
+    void shortestRoute(int src, int dest, SearchSpace space, SearchStats stats) {
+        var t = tables;
+        if (t.fewest == null) {
+            t = computeFewest();
+        }
+        write(t.graph, t.fewest[src], src, dest, space, stats);
+    }
+
+    private void write(CompactGraph graph, int[] row, int src, int dest, SearchSpace space, SearchStats stats) {
+        space.reset(n);
+        stats.reset();
+        space.reach(src, 0, -1, -1);
+        if (src == dest || row[dest] < 0) {
+            return;
+        }
+        for (int v = dest; v != src; ) {
+            int slot = row[v];
+            int u = graph.targets[slot];
+            space.reach(v, 0, u, slot);
+            v = u;
+        }
+    }
+}
+
+/**
+ *  A shortest path tree (by time) from one origin, kept up to date as the graph
+ *  changes instead of being searched again.
+ *
+ *  Terminal IDs stay the same while terminals are only added, and shuttle IDs
+ *  never change, so the tree stores parents as terminal IDs and the shuttle
+ *  taken from them by shuttle ID; a tree is dropped when terminals are removed.
+ *  Moving to a newer snapshot first repairs the subtrees hanging off removed or
+ *  closed shuttles: their distances are reset and searched again from the rest
+ *  of the tree, touching only the terminals in those subtrees and their
+ *  neighbours. Then the shuttles added since are relaxed and their decreases
+ *  propagated. Both cost time proportional to the part of the tree that changes.
+ *
+ *  Updates must not run concurrently. Each one works on fresh copies of the
+ *  arrays and publishes them as Routes, which are never changed afterwards and
+ *  can be read by any thread without locking.
+ */
+class ShortestPathTree {
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    /**
+     * The tree as of one snapshot
+     */
+    static class Routes {
+        final CompactGraph graph;
+        final int[] distance;
+        final int[] parent;
+        final int[] shuttle;
+
+        Routes(CompactGraph graph, int[] distance, int[] parent, int[] shuttle) {
+            this.graph = graph;
+            this.distance = distance;
+            this.parent = parent;
+            this.shuttle = shuttle;
+        }
+    }
+
+    private final int origin;
+    private volatile Routes routes;
+    volatile long used;         // System.nanoTime() of the last query answered
+    private CompactGraph graph; // the snapshot the tree is up to date with
+    private int[] distance;
+    private int[] parent;
+    private int[] shuttle;      // ID of the shuttle taken from the parent
+    private int[] affected;     // stamp of the last repair that reset the terminal
+    private int repairs;
+    private final IndexedIntHeap heap = new IndexedIntHeap();
+    private final IntStack pending = new IntStack();
+    private final IntStack subtree = new IntStack();
+
+    /**
+     * Grows a tree with a full search
+     *
+     * @param g      the snapshot to search
+     * @param origin the origin terminal ID
+     * @param space  a search space to run the search in
+     * @param stats  counters to fill in
+     */
+    ShortestPathTree(CompactGraph g, int origin, SearchSpace space, SearchStats stats) {
+        this.origin = origin;
+        this.graph = g;
+        int n = g.size();
+        distance = new int[n];
+        parent = new int[n];
+        shuttle = new int[n];
+        affected = new int[n];
+        GraphUtilities.fastestPathDijkstra(g, origin, -1, space, stats);
+        for (int v = 0; v < n; v++) {
+            boolean reached = space.isReached(v) && v != origin;
+            distance[v] = space.isReached(v) ? space.distance[v] : INFINITY;
+            parent[v] = reached ? space.parent[v] : -1;
+            shuttle[v] = reached ? g.shuttleIds[space.via[v]] : -1;
+        }
+        routes = new Routes(g, distance, parent, shuttle);
+        used = System.nanoTime();
+    }
+
+    Routes routes() {
+        return routes;
+    }
+
+    /**
+     * Brings the tree up to date with a snapshot taken after the one it was
+     * grown or last updated on, with no terminal removed in between
+     *
+     * @param g the newer snapshot
+     */
+    void update(CompactGraph g) {
+        if (g == graph) {
+            return;
+        }
+        var old = graph;
+        int[] removed = g.removedSince(old);
+        int[] added = g.addedSince(old);
+        graph = g;
+        int grown = distance.length;
+        int n = Math.max(g.size(), grown);
+        distance = Arrays.copyOf(distance, n);
+        parent = Arrays.copyOf(parent, n);
+        shuttle = Arrays.copyOf(shuttle, n);
+        if (n > grown) {
+            affected = Arrays.copyOf(affected, n);
+            Arrays.fill(distance, grown, g.size(), INFINITY);
+            Arrays.fill(parent, grown, g.size(), -1);
+            Arrays.fill(shuttle, grown, g.size(), -1);
+        }
+        if (removed.length > 0) {
+            repairRemoved(old, removed, old.shuttleBound());
+        }
+        for (int id : added) {
+            var s = g.shuttle(id);
+            int a = g.indexOf(s.getOrigin());
+            int b = g.indexOf(s.getDestination());
+            relax(a, b, s.getTime() + g.waiting[a], id);
+            relax(b, a, s.getTime() + g.waiting[b], id);
+        }
+        propagate(INFINITY);
+        routes = new Routes(g, distance, parent, shuttle);
+    }
+
+    /**
+     * Resets the subtrees below the removed shuttles and searches them again
+     * from their neighbours outside, over the shuttles that existed before
+     */
+    private void repairRemoved(CompactGraph old, int[] removed, int shuttleBound) {
+        var g = graph;
+        repairs++;
+        for (int id : removed) {
+            var s = old.shuttle(id);
+            int a = old.indexOf(s.getOrigin());
+            int b = old.indexOf(s.getDestination());
+            if (parent[b] == a && shuttle[b] == id) {
+                cut(b);
+            }
+            if (parent[a] == b && shuttle[a] == id) {
+                cut(a);
+            }
+        }
+        if (subtree.isEmpty()) {
+            return;
+        }
+
+        heap.clear();
+        for (int i = 0; i < subtree.size(); i++) {
+            int v = subtree.get(i);
+            distance[v] = INFINITY;
+            parent[v] = -1;
+            shuttle[v] = -1;
+        }
+        for (int i = 0; i < subtree.size(); i++) {
+            int v = subtree.get(i);
+            // every shuttle is listed in the rows of both its terminals
+            for (int slot = g.offsets[v]; slot < g.offsets[v + 1]; slot++) {
+                int u = g.targets[slot];
+                int id = g.shuttleIds[slot];
+                if (affected[u] == repairs || distance[u] == INFINITY || id >= shuttleBound || !g.isOpen(slot)) {
+                    continue;
+                }
+                int dv = distance[u] + g.times[slot] + g.waiting[u];
+                if (dv < distance[v]) {
+                    distance[v] = dv;
+                    parent[v] = u;
+                    shuttle[v] = id;
+                }
+            }
+            if (distance[v] != INFINITY) {
+                heap.append(v, distance[v]);
+            }
+        }
+        heap.heapify();
+        subtree.clear();
+        propagate(shuttleBound);
+    }
+
+    /**
+     * Collects the subtree rooted at v, unless a previous cut already did
+     */
+    private void cut(int v) {
+        if (affected[v] == repairs) {
+            return;
+        }
+        var g = graph;
+        affected[v] = repairs;
+        pending.push(v);
+        while (!pending.isEmpty()) {
+            int u = pending.pop();
+            subtree.push(u);
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int child = g.targets[slot];
+                if (parent[child] == u && shuttle[child] == g.shuttleIds[slot] && affected[child] != repairs) {
+                    affected[child] = repairs;
+                    pending.push(child);
+                }
+            }
+        }
+    }
+
+    private void relax(int u, int v, int weight, int id) {
+        if (distance[u] == INFINITY || distance[u] + weight >= distance[v]) {
+            return;
+        }
+        distance[v] = distance[u] + weight;
+        parent[v] = u;
+        shuttle[v] = id;
+        if (heap.contains(v)) {
+            heap.decreaseKey(v, distance[v]);
+        } else {
+            heap.insert(v, distance[v]);
+        }
+    }
+
+    /**
+     * Dijkstra's algorithm from the terminals in the heap, over the open
+     * shuttles with an ID below shuttleBound
+     */
+    private void propagate(int shuttleBound) {
+        var g = graph;
+        while (!heap.isEmpty()) {
+            int u = heap.removeMin();
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                if (g.shuttleIds[slot] < shuttleBound && g.isOpen(slot)) {
+                    relax(u, g.targets[slot], g.times[slot] + g.waiting[u], g.shuttleIds[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the route to dest into a search space, as if a search had found it
+     *
+     * @param r     the routes published for the caller's snapshot
+     * @param dest  the destination terminal ID
+     * @param space the search space to write the route to
+     * @param stats counters to fill in
+     */
+    void write(Routes r, int dest, SearchSpace space, SearchStats stats) {
+        var g = r.graph;
+        int[] distance = r.distance;
+        int[] parent = r.parent;
+        int[] shuttle = r.shuttle;
+        space.reset(g.size());
+        stats.reset();
+        space.reach(origin, 0, -1, -1);
+        if (distance[dest] == INFINITY) {
+            return;
+        }
+        for (int v = dest; v != origin; v = parent[v]) {
+            int u = parent[v];
+            int slot = g.offsets[u];
+            while (g.shuttleIds[slot] != shuttle[v] || g.targets[slot] != v) {
+                slot++;
+            }
+            space.reach(v, distance[v], u, slot);
+        }
+    }
+}
+
+/**
+ *  Shortest path trees for the origins of the most frequent findFastestPath
+ *  queries. An origin gets a tree once it has been queried hotQueries times,
+ *  and the least recently used tree is dropped beyond maxTrees.
+ *
+ *  A query whose snapshot a tree is already up to date with reads the tree's
+ *  published routes without locking. Counting queries, growing, updating and
+ *  dropping trees synchronize on this object.
+ */
+class ShortestPathTrees {
+    private final int maxTrees;
+    private final int hotQueries;
+    private final Map<Integer, Integer> queries = new HashMap<>(); // origin ID -> queries without a tree
+    private final Map<Integer, ShortestPathTree> trees = new ConcurrentHashMap<>();
+    private volatile long minVersion; // snapshots before this one use terminal IDs from before a removal
+
+    ShortestPathTrees(int maxTrees, int hotQueries) {
+        this.maxTrees = Math.max(1, maxTrees);
+        this.hotQueries = Math.max(1, hotQueries);
+    }
+
+    /**
+     * Writes the fastest route into the forward search space of a workspace if
+     * the origin has a tree, growing one if the origin has become frequent
+     *
+     * @param g           the current snapshot
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param workspace   the calling thread's workspace
+     * @return true if the route was written, false if it has to be searched for
+     */
+    boolean route(CompactGraph g, int origin, int destination, SearchWorkspace workspace) {
+        if (g.version < minVersion) {
+            return false;
+        }
+        var tree = trees.get(origin);
+        ShortestPathTree.Routes routes;
+        if (tree == null) {
+            tree = grow(g, origin, workspace);
+            if (tree == null) {
+                return false;
+            }
+            routes = tree.routes();
+        } else {
+            routes = tree.routes();
+            if (routes.graph != g) {
+                routes = update(g, origin, tree);
+                if (routes == null) {
+                    return false;
+                }
+            }
+        }
+        tree.used = System.nanoTime();
+        tree.write(routes, destination, workspace.forward, workspace.stats);
+        return true;
+    }
+
+    /**
+     * Counts a query from an origin without a tree, and grows one once the
+     * origin has been queried hotQueries times
+     *
+     * @return the new tree, or null
+     */
+    private synchronized ShortestPathTree grow(CompactGraph g, int origin, SearchWorkspace workspace) {
+        if (g.version < minVersion || trees.containsKey(origin)) {
+            return null;
+        }
+        if (queries.merge(origin, 1, Integer::sum) < hotQueries) {
+            return null;
+        }
+        queries.remove(origin);
+        var tree = new ShortestPathTree(g, origin, workspace.forward, workspace.stats);
+        if (trees.size() >= maxTrees) {
+            int eldest = -1;
+            long oldest = Long.MAX_VALUE;
+            for (var entry : trees.entrySet()) {
+                if (eldest < 0 || entry.getValue().used - oldest < 0) {
+                    eldest = entry.getKey();
+                    oldest = entry.getValue().used;
+                }
+            }
+            trees.remove(eldest);
+        }
+        trees.put(origin, tree);
+        return tree;
+    }
+
+    /**
+     * Brings a tree up to date with the caller's snapshot
+     *
+     * @return the routes published for g, or null if the tree was dropped
+     *         meanwhile or the calling thread is behind it
+     */
+    private synchronized ShortestPathTree.Routes update(CompactGraph g, int origin, ShortestPathTree tree) {
+        if (trees.get(origin) != tree || tree.routes().graph.version > g.version) {
+            return null;
+        }
+        tree.update(g);
+        return tree.routes();
+    }
+
+    /**
+     * Drops every tree after terminals were removed, which renumbers them
+     *
+     * @param version the graph version after the removal
+     */
+    synchronized void terminalsRemoved(long version) {
+        minVersion = version;
+        trees.clear();
+        queries.clear();
+    }
+
+    public int size() {
+        return trees.size();
+    }
+}
+
+/**
+ *  A bounded cache of route results keyed by origin, destination and query kind.
+ *
+ *  Every entry records the graph version it was computed at and is treated as a
+ *  miss once terminals or shuttles were added or terminals removed. Closing a
+ *  shuttle only makes other routes longer, so it just evicts the routes that
+ *  used it, found through a shuttle to routes index. All methods synchronize on
+ *  the cache.
+ */
+class RouteCache {
+
+    /**
+     * Which route to drop when the cache is full
+     */
+    enum Eviction {
+        /* the least recently used route */
+        LRU,
+        /* the route that was cached first */
+        FIFO
+    }
+
+    /**
+     * A cached route: the terminal IDs in the order travelled and the slot of the
+     * shuttle taken to reach each of them; terminals is null if there is no route
+     */
+    private static class CachedRoute {
+        final long version;
+        final int[] terminals;
+        final int[] slots;
+        final int[] shuttles;
+
+        CachedRoute(long version, int[] terminals, int[] slots, int[] shuttles) {
+            this.version = version;
+            this.terminals = terminals;
+            this.slots = slots;
+            this.shuttles = shuttles;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Long, CachedRoute> routes;
+    private final Map<Integer, Set<Long>> dependents = new HashMap<>(); // shuttle ID -> keys of routes using it
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    RouteCache(int capacity, Eviction eviction) {
+        this.capacity = Math.max(1, capacity);
+        this.routes = new LinkedHashMap<>(16, 0.75f, eviction == Eviction.LRU);
+    }
+
+    private static long key(int origin, int destination, boolean fastest) {
+        return (long) origin << 32 | (long) destination << 1 | (fastest ? 1 : 0);
+    }
+
+    /**
+     * Writes a cached route into a search space, as if a search had found it
+     *
+     * @param graph       the current snapshot
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param fastest     true for findFastestPath, false for findShortestPath
+     * @param space       the search space to write the route to
+     * @return true on a hit, false if the route has to be searched for
+     */
+    synchronized boolean load(CompactGraph graph, int origin, int destination, boolean fastest, SearchSpace space) {
+        long key = key(origin, destination, fastest);
+        CachedRoute route = routes.get(key);
+        if (route == null) {
+            misses++;
+            return false;
+        }
+        if (route.version != graph.version) {
+            remove(key, route);
+            invalidations++;
+            misses++;
+            return false;
+        }
+
+        hits++;
+        space.reset(graph.size());
+        space.reach(origin, 0, -1, -1);
+        if (route.terminals != null) {
+            for (int i = 1; i < route.terminals.length; i++) {
+                space.reach(route.terminals[i], i, route.terminals[i - 1], route.slots[i]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Caches the route a search left in a search space
+     *
+     * @param graph       the snapshot searched
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param fastest     true for findFastestPath, false for findShortestPath
+     * @param space       the search space holding the route
+     */
+    synchronized void store(CompactGraph graph, int origin, int destination, boolean fastest, SearchSpace space) {
+        int[] terminals = null;
+        int[] slots = null;
+        int[] shuttles = new int[0];
+        if (space.isReached(destination)) {
+            int length = 1;
+            for (int v = destination; v != origin; v = space.parent[v]) {
+                length++;
+            }
+            terminals = new int[length];
+            slots = new int[length];
+            shuttles = new int[length - 1];
+            for (int v = destination, i = length - 1; i >= 0; v = space.parent[v], i--) {
+                terminals[i] = v;
+                slots[i] = space.via[v];
+                if (i > 0) {
+                    shuttles[i - 1] = graph.shuttleIds[space.via[v]];
+                }
+            }
+        }
+
+        long key = key(origin, destination, fastest);
+        CachedRoute old = routes.remove(key);
+        if (old != null) {
+            unregister(key, old);
+        }
+        routes.put(key, new CachedRoute(graph.version, terminals, slots, shuttles));
+        for (int shuttle : shuttles) {
+            dependents.computeIfAbsent(shuttle, id -> new HashSet<>()).add(key);
+        }
+        if (routes.size() > capacity) {
+            var eldest = routes.entrySet().iterator().next();
+            remove(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Evicts the routes travelling on a shuttle that was closed
+     *
+     * @param shuttle the shuttle ID
+     */
+    synchronized void evictShuttle(int shuttle) {
+        Set<Long> keys = dependents.remove(shuttle);
+        if (keys == null) {
+            return;
+        }
+        for (long key : keys) {
+            CachedRoute route = routes.remove(key);
+            if (route != null) {
+                unregister(key, route);
+                invalidations++;
+            }
+        }
+    }
+
+    private void remove(long key, CachedRoute route) {
+        routes.remove(key);
+        unregister(key, route);
+    }
+
+    private void unregister(long key, CachedRoute route) {
+        for (int shuttle : route.shuttles) {
+            Set<Long> keys = dependents.get(shuttle);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    dependents.remove(shuttle);
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return routes.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns how many routes were dropped to make room for new ones
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns how many routes were dropped because the graph changed under them
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
+
+/**
+ *  The K fastest loopless routes between pairs of terminals, kept so that a
+ *  query whose route has a closed or full shuttle is answered by the next route
+ *  still open instead of a new search.
+ *
+ *  Routes are found with Yen's algorithm: each route after the first leaves an
+ *  earlier one at a spur terminal, and is the fastest way on from there that
+ *  avoids the terminals before the spur and the shuttles the earlier routes
+ *  with the same start take from it. Lawler's refinement only spurs a route
+ *  from where it left its own parent, as spurs before that were searched for
+ *  the parent already. The spur searches are A* over lower bounds taken from a
+ *  single backward search from the destination, which stays valid since
+ *  avoiding terminals and shuttles only makes routes longer.
+ *
+ *  Closing shuttles also only makes routes longer, so as long as one of the
+ *  kept routes is open the first of them is a fastest route, and a pair with no
+ *  route stays without one. Routes are kept while the graph has the same
+ *  structure and are searched again once none of them is left.
+ */
+class AlternativeRoutes {
+
+    /**
+     * A route: the terminal IDs in the order travelled and the slot of the
+     * shuttle taken to reach each of them, slots[0] being -1
+     */
+    static class Alternative implements Comparable<Alternative> {
+        final int[] terminals;
+        final int[] slots;
+        final int time;
+        final int deviation; // the index of the terminal where it left the route it was spurred from
+
+        Alternative(int[] terminals, int[] slots, int time, int deviation) {
+            this.terminals = terminals;
+            this.slots = slots;
+            this.time = time;
+            this.deviation = deviation;
+        }
+
+        @Override
+        public int compareTo(Alternative other) {
+            return time != other.time ? Integer.compare(time, other.time)
+                    : Integer.compare(terminals.length, other.terminals.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Alternative && Arrays.equals(terminals, ((Alternative) o).terminals);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(terminals);
+        }
+
+        /**
+         * Tells whether every shuttle of the route is open and has a seat left
+         */
+        boolean isOpen(CompactGraph graph, SeatLedger seats) {
+            for (int i = 1; i < slots.length; i++) {
+                if (!graph.isOpen(slots[i]) || seats.seatsLeft(graph.shuttleIds[slots[i]]) <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        CompactRoute toRoute(CompactGraph graph) {
+            int[] shuttles = new int[slots.length - 1];
+            for (int i = 1; i < slots.length; i++) {
+                shuttles[i - 1] = graph.shuttleIds[slots[i]];
+            }
+            return new CompactRoute(graph.terminals, terminals, shuttles, time);
+        }
+    }
+
+    private static class Entry {
+        final CompactGraph graph;
+        final List<Alternative> routes;
+
+        Entry(CompactGraph graph, List<Alternative> routes) {
+            this.graph = graph;
+            this.routes = routes;
+        }
+    }
+
+    private final int k;
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long fallbacks;
+    private long misses;
+
+    AlternativeRoutes(int k, int capacity) {
+        this.k = Math.max(1, k);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    private static long key(int origin, int destination) {
+        return (long) origin << 32 | destination;
+    }
+
+    /**
+     * Writes the first kept route from origin to destination that is still
+     * open into the forward search space of the workspace, as if a search had
+     * found it. The routes are searched for first if none are kept or none of
+     * them is open any more.
+     *
+     * @param graph       the current snapshot
+     * @param seats       the seats left on each shuttle
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param workspace   the calling thread's workspace
+     */
+    void route(CompactGraph graph, SeatLedger seats, int origin, int destination, SearchWorkspace workspace) {
+        long key = key(origin, destination);
+        Alternative found = null;
+        boolean unreachable = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.graph.sameStructure(graph)) {
+                unreachable = entry.routes.isEmpty(); // and stays so until shuttles are added
+                if (unreachable) {
+                    hits++;
+                }
+                for (int i = 0; i < entry.routes.size() && found == null; i++) {
+                    if (entry.routes.get(i).isOpen(graph, seats)) {
+                        found = entry.routes.get(i);
+                        hits++;
+                        if (i > 0) {
+                            fallbacks++;
+                        }
+                    }
+                }
+            }
+            if (found == null && !unreachable) {
+                misses++;
+            }
+        }
+
+        if (found == null && !unreachable) {
+            var routes = compute(graph, origin, destination, k, workspace);
+            store(graph, key, routes);
+            for (var route : routes) {
+                if (route.isOpen(graph, seats)) {
+                    found = route;
+                    break;
+                }
+            }
+        }
+
+        var space = workspace.forward;
+        space.reset(graph.size());
+        space.reach(origin, 0, -1, -1);
+        if (found != null) {
+            for (int i = 1; i < found.terminals.length; i++) {
+                space.reach(found.terminals[i], i, found.terminals[i - 1], found.slots[i]);
+            }
+        }
+    }
+
+    /**
+     * Keeps the routes found between a pair of terminals
+     *
+     * @param graph       the snapshot searched
+     * @param origin      the origin terminal ID
+     * @param destination the destination terminal ID
+     * @param routes      the routes, fastest first
+     */
+    void store(CompactGraph graph, int origin, int destination, List<Alternative> routes) {
+        store(graph, key(origin, destination), routes);
+    }
+
+    private synchronized void store(CompactGraph graph, long key, List<Alternative> routes) {
+        entries.put(key, new Entry(graph, routes));
+        if (entries.size() > capacity) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Finds up to k fastest loopless routes from src to dest, over the open
+     * shuttles of a snapshot. Uses both search spaces of the workspace and adds
+     * the work of every search to its stats.
+     *
+     * @param g    the snapshot to search
+     * @param src  the source terminal ID
+     * @param dest the destination terminal ID
+     * @param k    the number of routes wanted
+     * @param w    the calling thread's workspace
+     * @return the routes, fastest first; none if dest cannot be reached
+     */
+    static List<Alternative> compute(CompactGraph g, int src, int dest, int k, SearchWorkspace w) {
+        List<Alternative> found = new ArrayList<>(k);
+        if (src == dest) {
+            found.add(new Alternative(new int[]{src}, new int[]{-1}, g.waiting[src], 0));
+            return found;
+        }
+        // lower bounds: exact up to the distance of src, the distance of src beyond
+        var bounds = w.backward;
+        GraphUtilities.fastestPathDijkstra(g, dest, src, true, bounds, w.stats);
+        if (!bounds.isSettled(src)) {
+            return found;
+        }
+        int radius = bounds.distance[src];
+
+        var first = spur(g, src, dest, new int[]{src}, new int[]{-1}, 0, 0, new int[0], 0, radius, w);
+        found.add(first);
+        var candidates = new PriorityQueue<Alternative>();
+        var seen = new HashSet<Alternative>();
+        seen.add(first);
+        int[] banned = new int[k];
+        while (found.size() < k) {
+            var last = found.get(found.size() - 1);
+            int rootTime = 0;
+            for (int i = 0; i < last.deviation; i++) {
+                rootTime += g.times[last.slots[i + 1]] + g.waiting[last.terminals[i]];
+            }
+            for (int i = last.deviation; i < last.terminals.length - 1; i++) {
+                // the shuttles taken from the spur by the routes found with the same start
+                int bannedCount = 0;
+                for (var route : found) {
+                    if (route.terminals.length > i + 1
+                            && Arrays.equals(route.terminals, 0, i + 1, last.terminals, 0, i + 1)) {
+                        banned[bannedCount++] = g.shuttleIds[route.slots[i + 1]];
+                    }
+                }
+                var candidate = spur(g, last.terminals[i], dest, last.terminals, last.slots, i, rootTime, banned,
+                        bannedCount, radius, w);
+                if (candidate != null && seen.add(candidate)) {
+                    candidates.add(candidate);
+                }
+                rootTime += g.times[last.slots[i + 1]] + g.waiting[last.terminals[i]];
+            }
+            if (candidates.isEmpty()) {
+                break;
+            }
+            found.add(candidates.poll());
+        }
+        return found;
+    }
+
+    /**
+     * A* search from the spur terminal of a route to dest, that avoids the
+     * terminals of the route before the spur and the banned shuttles from it
+     *
+     * @return the route made of the root and the spur, or null if there is none
+     */
+    private static Alternative spur(CompactGraph g, int spur, int dest, int[] rootTerminals, int[] rootSlots,
+                                    int spurIndex, int rootTime, int[] banned, int bannedCount, int radius,
+                                    SearchWorkspace w) {
+        var space = w.forward;
+        var bounds = w.backward;
+        var stats = w.stats;
+        space.reset(g.size());
+        for (int i = 0; i < spurIndex; i++) {
+            space.settle(rootTerminals[i]); // never entered again, which keeps the route loopless
+        }
+        space.reach(spur, rootTime, -1, -1);
+        space.heap.insert(spur, rootTime + bound(bounds, spur, radius));
+        stats.inserts++;
+        while (!space.heap.isEmpty()) {
+            int u = space.heap.removeMin();
+            space.settle(u);
+            stats.extracts++;
+            stats.settled++;
+            if (u == dest) {
+                break;
+            }
+            int du = space.distance[u];
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (space.isSettled(v) || !g.isOpen(slot) || u == spur && isBanned(g.shuttleIds[slot], banned,
+                        bannedCount)) {
+                    continue;
+                }
+                stats.relaxed++;
+                int dv = du + g.times[slot] + g.waiting[u];
+                if (!space.isReached(v)) {
+                    space.reach(v, dv, u, slot);
+                    space.heap.insert(v, dv + bound(bounds, v, radius));
+                    stats.inserts++;
+                } else if (dv < space.distance[v]) {
+                    space.reach(v, dv, u, slot);
+                    space.heap.decreaseKey(v, dv + bound(bounds, v, radius));
+                    stats.decreases++;
+                }
+            }
+        }
+        if (!space.isSettled(dest)) {
+            return null;
+        }
+
+        int hops = 0;
+        for (int v = dest; v != spur; v = space.parent[v]) {
+            hops++;
+        }
+        int[] terminals = Arrays.copyOf(rootTerminals, spurIndex + 1 + hops);
+        int[] slots = Arrays.copyOf(rootSlots, spurIndex + 1 + hops);
+        for (int v = dest, i = spurIndex + hops; v != spur; v = space.parent[v], i--) {
+            terminals[i] = v;
+            slots[i] = space.via[v];
+        }
+        return new Alternative(terminals, slots, space.distance[dest], spurIndex);
+    }
+
+    private static int bound(SearchSpace bounds, int v, int radius) {
+        return bounds.isSettled(v) ? bounds.distance[v] : radius;
+    }
+
+    private static boolean isBanned(int shuttle, int[] banned, int count) {
+        for (int i = 0; i < count; i++) {
+            if (banned[i] == shuttle) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns how many queries were answered by a kept route
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many of the hits used another route than the fastest kept,
+     * because a shuttle of the ones before was closed or full
+     */
+    public synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    /**
+     * Returns how many queries had to search for routes
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
+
+/**
+ *  Seats left on each shuttle, by shuttle ID, updated by compare and set so
+ *  that routing threads book without taking the airport lock.
+ *
+ *  The counters live in chunks that never move once allocated, so opening new
+ *  shuttles (with the airport lock held) does not disturb bookings on existing
+ *  ones. A counter of 0 means the shuttle is full and about to be removed, unless
+ *  a seat is released first; CLOSED means it was removed.
+ */
+class SeatLedger {
+    static final int CLOSED = -1;
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+
+    /**
+     * Opens a new shuttle. Only one thread at a time may open shuttles.
+     *
+     * @param shuttle  the shuttle ID
+     * @param capacity its number of seats
+     */
+    void open(int shuttle, int capacity) {
+        int chunk = shuttle >>> CHUNK_BITS;
+        var current = chunks;
+        if (chunk >= current.length) {
+            var grown = Arrays.copyOf(current, Math.max(chunk + 1, current.length * 2));
+            for (int c = current.length; c < grown.length; c++) {
+                grown[c] = new AtomicIntegerArray(1 << CHUNK_BITS);
+            }
+            chunks = grown;
+            current = grown;
+        }
+        current[chunk].set(shuttle & CHUNK_MASK, capacity);
+    }
+
+    /**
+     * Returns the seats left on a shuttle
+     *
+     * @param shuttle the shuttle ID
+     * @return the seats left, or CLOSED if the shuttle was removed
+     */
+    int seatsLeft(int shuttle) {
+        return chunks[shuttle >>> CHUNK_BITS].get(shuttle & CHUNK_MASK);
+    }
+
+    /**
+     * Writes the seats left on shuttles 0 .. bound - 1
+     */
+    void writeTo(DataOutputStream out, int bound) throws IOException {
+        for (int shuttle = 0; shuttle < bound; shuttle++) {
+            out.writeInt(seatsLeft(shuttle));
+        }
+    }
+
+    /**
+     * Opens shuttles 0 .. bound - 1 with the seats written by writeTo
+     */
+    void readFrom(ByteBuffer in, int bound) {
+        for (int shuttle = 0; shuttle < bound; shuttle++) {
+            open(shuttle, in.getInt());
+        }
+    }
+
+    /**
+     * Takes seats on a shuttle if it has enough left
+     *
+     * @param shuttle the shuttle ID
+     * @param party   the number of seats
+     * @return false if the shuttle has fewer seats left or was removed
+     */
+    boolean reserve(int shuttle, int party) {
+        var counters = chunks[shuttle >>> CHUNK_BITS];
+        int i = shuttle & CHUNK_MASK;
+        while (true) {
+            int left = counters.get(i);
+            if (left < party) {
+                return false;
+            }
+            if (counters.compareAndSet(i, left, left - party)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes seats on every shuttle of a route, or on none of them
+     *
+     * @param shuttles the shuttle IDs
+     * @param party    the number of seats on each shuttle
+     * @return -1 on success, else the index of the first shuttle that had not
+     * enough seats; the seats taken before it were given back
+     */
+    int reserveAll(int[] shuttles, int party) {
+        for (int i = 0; i < shuttles.length; i++) {
+            if (!reserve(shuttles[i], party)) {
+                for (int j = 0; j < i; j++) {
+                    release(shuttles[j], party);
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives seats back to a shuttle, unless it was removed
+     *
+     * @param shuttle the shuttle ID
+     * @param party   the number of seats
+     * @return false if the shuttle was removed
+     */
+    boolean release(int shuttle, int party) {
+        var counters = chunks[shuttle >>> CHUNK_BITS];
+        int i = shuttle & CHUNK_MASK;
+        while (true) {
+            int left = counters.get(i);
+            if (left == CLOSED) {
+                return false;
+            }
+            if (counters.compareAndSet(i, left, left + party)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Closes a shuttle if it has no seats left
+     *
+     * @param shuttle the shuttle ID
+     * @return true if this call closed the shuttle, false if it has seats or
+     * was closed already
+     */
+    boolean closeIfFull(int shuttle) {
+        return chunks[shuttle >>> CHUNK_BITS].compareAndSet(shuttle & CHUNK_MASK, 0, CLOSED);
+    }
+
+    /**
+     * Closes a shuttle whatever the seats left on it
+     *
+     * @param shuttle the shuttle ID, ignored if it was never opened
+     */
+    void close(int shuttle) {
+        var current = chunks;
+        if (shuttle >= 0 && shuttle >>> CHUNK_BITS < current.length) {
+            current[shuttle >>> CHUNK_BITS].set(shuttle & CHUNK_MASK, CLOSED);
+        }
+    }
+}
+
+/**
+ *  Seats held by a party on every shuttle of a path. They are given back a few
+ *  passengers at a time with release, or all at once with cancel. Seats on a
+ *  shuttle that was removed in the meantime are not given back.
+ */
+class Reservation {
+    private final SeatLedger ledger;
+    private final AirportBase.Path path;
+    private final int[] shuttles;
+    private final AtomicInteger passengers;
+
+    Reservation(SeatLedger ledger, AirportBase.Path path, int[] shuttles, int passengers) {
+        this.ledger = ledger;
+        this.path = path;
+        this.shuttles = shuttles;
+        this.passengers = new AtomicInteger(passengers);
+    }
+
+    public AirportBase.Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns how many passengers still hold a seat
+     */
+    public int getPassengers() {
+        return passengers.get();
+    }
+
+    /**
+     * Gives back the seats of some passengers of the party
+     *
+     * @param count how many passengers leave the party
+     * @return false if fewer passengers than count still hold a seat
+     */
+    public boolean release(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        int left;
+        do {
+            left = passengers.get();
+            if (left < count) {
+                return false;
+            }
+        } while (!passengers.compareAndSet(left, left - count));
+        giveBack(count);
+        return true;
+    }
+
+    /**
+     * Gives back the seats of the whole party
+     *
+     * @return false if the reservation was already cancelled or fully released
+     */
+    public boolean cancel() {
+        int left = passengers.getAndSet(0);
+        if (left == 0) {
+            return false;
+        }
+        giveBack(left);
+        return true;
+    }
+
+    private void giveBack(int count) {
+        for (int shuttle : shuttles) {
+            ledger.release(shuttle, count);
+        }
+    }
+}
+
+/**
+ *  Min cost flow allocation of a group of passengers leaving one terminal.
+ *
+ *  Every open shuttle becomes an arc in each direction, holding as many passengers
+ *  as it has seats left and costing its time plus the waiting time where it is
+ *  boarded; each destination has an arc to a super sink holding its passengers.
+ *  Successive shortest paths (Dijkstra over reduced costs, with potentials) then
+ *  push the passengers at minimum total time, and the flow is split back into
+ *  routes. Both directions of a shuttle share its seats, so opposite flows on the
+ *  same shuttle are cancelled before that; a min cost flow never needs both.
+ */
+class PassengerFlow {
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    /**
+     * Passengers sharing a route
+     */
+    static class Allocation {
+        final CompactRoute route;
+        final int passengers;
+
+        Allocation(CompactRoute route, int passengers) {
+            this.route = route;
+            this.passengers = passengers;
+        }
+    }
+
+    private final CompactGraph g;
+    private final int sink;
+    private final int[] head;
+    private final int[] next;
+    private final int[] to;
+    private final int[] cap;
+    private final int[] cost;
+    private final int[] slotOf;     // slot of a shuttle arc, -1 for an arc into the sink
+    private int arcs;
+    private final int[] potential;
+    private final int[] distance;
+    private final int[] parentArc;
+    private final IndexedIntHeap heap = new IndexedIntHeap();
+
+    private PassengerFlow(CompactGraph g, int maxArcs) {
+        this.g = g;
+        this.sink = g.size();
+        head = new int[sink + 1];
+        Arrays.fill(head, -1);
+        next = new int[maxArcs];
+        to = new int[maxArcs];
+        cap = new int[maxArcs];
+        cost = new int[maxArcs];
+        slotOf = new int[maxArcs];
+        potential = new int[sink + 1];
+        distance = new int[sink + 1];
+        parentArc = new int[sink + 1];
+    }
+
+    /**
+     * Allocates passengers to routes at minimum total travel time
+     *
+     * @param g      the snapshot to route on
+     * @param seats  the seats left on each shuttle
+     * @param origin the terminal ID the passengers leave from
+     * @param demand the number of passengers for each terminal ID; 0 at origin
+     * @return the routes used and how many passengers take each; passengers
+     * that cannot be seated are left out
+     */
+    static List<Allocation> solve(CompactGraph g, SeatLedger seats, int origin, int[] demand) {
+        int n = g.size();
+        var flow = new PassengerFlow(g, 2 * (g.targets.length + n));
+        int total = 0;
+        for (int u = 0; u < n; u++) {
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int left = seats.seatsLeft(g.shuttleIds[slot]);
+                if (left > 0 && g.isOpen(slot)) {
+                    flow.addArc(u, g.targets[slot], left, g.times[slot] + g.waiting[u], slot);
+                }
+            }
+            if (demand[u] > 0) {
+                flow.addArc(u, flow.sink, demand[u], 0, -1);
+                total += demand[u];
+            }
+        }
+        flow.push(origin, total);
+        return flow.decompose(origin);
+    }
+
+    private void addArc(int u, int v, int capacity, int c, int slot) {
+        to[arcs] = v;
+        cap[arcs] = capacity;
+        cost[arcs] = c;
+        slotOf[arcs] = slot;
+        next[arcs] = head[u];
+        head[u] = arcs++;
+        // residual arc, carries no flow yet
+        to[arcs] = u;
+        cap[arcs] = 0;
+        cost[arcs] = -c;
+        slotOf[arcs] = slot;
+        next[arcs] = head[v];
+        head[v] = arcs++;
+    }
+
+    /**
+     * Augments along shortest residual paths until required passengers reach
+     * the sink or no path with free seats is left
+     */
+    private void push(int source, int required) {
+        int sent = 0;
+        while (sent < required && shortestPaths(source)) {
+            int bottleneck = required - sent;
+            for (int v = sink; v != source; v = to[parentArc[v] ^ 1]) {
+                bottleneck = Math.min(bottleneck, cap[parentArc[v]]);
+            }
+            for (int v = sink; v != source; v = to[parentArc[v] ^ 1]) {
+                cap[parentArc[v]] -= bottleneck;
+                cap[parentArc[v] ^ 1] += bottleneck;
+            }
+            sent += bottleneck;
+        }
+    }
+
+    /**
+     * Dijkstra's algorithm over the reduced costs, which the potentials keep
+     * non negative; then folds the distances into the potentials. A node that is
+     * not reached stays unreachable, as augmenting only adds arcs between
+     * reached nodes.
+     *
+     * @return true if the sink was reached
+     */
+    private boolean shortestPaths(int source) {
+        Arrays.fill(distance, INFINITY);
+        distance[source] = 0;
+        heap.clear();
+        heap.insert(source, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.removeMin();
+            for (int a = head[u]; a >= 0; a = next[a]) {
+                if (cap[a] == 0) {
+                    continue;
+                }
+                int v = to[a];
+                int dv = distance[u] + cost[a] + potential[u] - potential[v];
+                if (dv < distance[v]) {
+                    parentArc[v] = a;
+                    if (heap.contains(v)) {
+                        heap.decreaseKey(v, dv);
+                    } else {
+                        heap.insert(v, dv);
+                    }
+                    distance[v] = dv;
+                }
+            }
+        }
+        if (distance[sink] == INFINITY) {
+            return false;
+        }
+        for (int v = 0; v <= sink; v++) {
+            if (distance[v] != INFINITY) {
+                potential[v] += distance[v];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits the flow into routes from source to the sink. The flow on forward
+     * arc a is the residual capacity of its reverse arc a ^ 1.
+     */
+    private List<Allocation> decompose(int source) {
+        cancelOpposites();
+        List<Allocation> allocations = new ArrayList<>();
+        int[] onWalk = new int[sink + 1];   // index in the walk plus one, 0 when not on it
+        var walk = new IntStack();          // arcs taken from source
+        int u = source;
+        onWalk[source] = 1;
+        while (true) {
+            int a = nextFlowArc(u);
+            if (a < 0) {
+                break;                      // only happens at source, once all the flow is split
+            }
+            int v = to[a];
+            if (v == sink) {
+                walk.push(a);
+                allocations.add(takeRoute(walk));
+                for (int i = 0; i < walk.size(); i++) {
+                    onWalk[to[walk.get(i)]] = 0;
+                }
+                walk.clear();
+                u = source;
+                continue;
+            }
+            if (onWalk[v] > 0) {
+                // a cycle of zero total time, drop its flow
+                walk.push(a);
+                int from = onWalk[v] - 1;
+                int bottleneck = INFINITY;
+                for (int i = from; i < walk.size(); i++) {
+                    bottleneck = Math.min(bottleneck, cap[walk.get(i) ^ 1]);
+                }
+                for (int i = from; i < walk.size(); i++) {
+                    cap[walk.get(i) ^ 1] -= bottleneck;
+                }
+                for (int i = from; i < walk.size() - 1; i++) {
+                    onWalk[to[walk.get(i)]] = 0;
+                }
+                walk.truncate(from);
+                u = v;
+                continue;
+            }
+            walk.push(a);
+            onWalk[v] = walk.size() + 1;
+            u = v;
+        }
+        return allocations;
+    }
+
+    private int nextFlowArc(int u) {
+        for (int a = head[u]; a >= 0; a = next[a]) {
+            if ((a & 1) == 0 && cap[a ^ 1] > 0) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the flow that went both ways on the same shuttle
+     */
+    private void cancelOpposites() {
+        int[] arcOfSlot = new int[g.targets.length];
+        Arrays.fill(arcOfSlot, -1);
+        for (int a = 0; a < arcs; a += 2) {
+            if (slotOf[a] >= 0) {
+                arcOfSlot[slotOf[a]] = a;
+            }
+        }
+        for (int a = 0; a < arcs; a += 2) {
+            int slot = slotOf[a];
+            if (slot < 0 || cap[a ^ 1] == 0) {
+                continue;
+            }
+            int v = g.targets[slot];
+            for (int back = g.offsets[v]; back < g.offsets[v + 1]; back++) {
+                if (back != slot && g.shuttleIds[back] == g.shuttleIds[slot] && arcOfSlot[back] >= 0) {
+                    int b = arcOfSlot[back];
+                    int both = Math.min(cap[a ^ 1], cap[b ^ 1]);
+                    cap[a ^ 1] -= both;
+                    cap[b ^ 1] -= both;
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns the arcs of a walk from source to the sink into a route, taking its
+     * bottleneck flow off every arc
+     */
+    private Allocation takeRoute(IntStack walk) {
+        int hops = walk.size() - 1;           // the last arc goes into the sink
+        int passengers = INFINITY;
+        for (int i = 0; i < walk.size(); i++) {
+            passengers = Math.min(passengers, cap[walk.get(i) ^ 1]);
+        }
+        int[] terminals = new int[hops + 1];
+        int[] shuttles = new int[hops];
+        int time = 0;
+        terminals[0] = to[walk.get(0) ^ 1];
+        for (int i = 0; i < walk.size(); i++) {
+            int a = walk.get(i);
+            cap[a ^ 1] -= passengers;
+            if (i < hops) {
+                terminals[i + 1] = to[a];
+                shuttles[i] = g.shuttleIds[slotOf[a]];
+                time += cost[a];
+            }
+        }
+        return new Allocation(new CompactRoute(g.terminals, terminals, shuttles, time), passengers);
+    }
+}
+
+/**
+ *  Reads an airport topology file through memory mapped windows, one byte at a
+ *  time, without building a String per line. The file holds one record per line:
+ *
+ *      T id waitingTime
+ *      S origin destination time
+ *
+ *  where shuttles name their terminals by position among the T lines, counting
+ *  from 0. Blank lines and lines starting with '#' are skipped.
+ */
+class TopologyReader implements AutoCloseable {
+    private static final long WINDOW = 1L << 26;
+
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+    private long line = 1;
+    private byte[] token = new byte[32];
+
+    TopologyReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        length = channel.size();
+        map(0);
+    }
+
+    private void map(long start) throws IOException {
+        bufferStart = start;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, length - start));
+    }
+
+    private int peek() throws IOException {
+        if (!buffer.hasRemaining()) {
+            long next = bufferStart + buffer.limit();
+            if (next >= length) {
+                return -1;
+            }
+            map(next);
+        }
+        return buffer.get(buffer.position()) & 0xFF; // bytes of UTF-8 characters are not the end of the file
+    }
+
+    private int read() throws IOException {
+        int b = peek();
+        if (b >= 0) {
+            buffer.get();
+            if (b == '\n') {
+                line++;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Skips blank and comment lines and returns the record type of the next
+     * line, consuming it, or -1 at the end of the file
+     */
+    int nextRecord() throws IOException {
+        while (true) {
+            skipBlanks();
+            int b = read();
+            if (b == '\n' || b == '\r') {
+                continue;
+            }
+            if (b != '#') {
+                return b;
+            }
+            skipLine();
+        }
+    }
+
+    void skipLine() throws IOException {
+        for (int b = read(); b >= 0 && b != '\n'; b = read()) {
+        }
+    }
+
+    /**
+     * Checks nothing but blanks is left on the current line and moves to the next
+     */
+    void endRecord() throws IOException {
+        skipBlanks();
+        int b = read();
+        if (b == '\r') {
+            b = read();
+        }
+        if (b >= 0 && b != '\n') {
+            throw error("unexpected '" + (char) b + "'");
+        }
+    }
+
+    private void skipBlanks() throws IOException {
+        for (int b = peek(); b == ' ' || b == '\t'; b = peek()) {
+            read();
+        }
+    }
+
+    int nextInt() throws IOException {
+        skipBlanks();
+        boolean negative = peek() == '-';
+        if (negative) {
+            read();
+        }
+        long value = 0;
+        int digits = 0;
+        for (int b = peek(); b >= '0' && b <= '9'; b = peek()) {
+            value = value * 10 + (read() - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw error("number out of range");
+            }
+            digits++;
+        }
+        if (digits == 0) {
+            throw error("number expected");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    String nextToken() throws IOException {
+        skipBlanks();
+        int size = 0;
+        for (int b = peek(); b > ' '; b = peek()) {
+            if (size == token.length) {
+                token = Arrays.copyOf(token, size * 2);
+            }
+            token[size++] = (byte) read();
+        }
+        if (size == 0) {
+            throw error("terminal ID expected");
+        }
+        return new String(token, 0, size, StandardCharsets.UTF_8);
+    }
+
+    IOException error(String message) {
+        return new IOException("line " + line + ": " + message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ *  The binary snapshot file written by Airport.save. It starts with a magic
+ *  number and the format version, then holds the sections written by the
+ *  snapshot, the seat ledger and the routing indexes, and ends with the CRC32 of
+ *  everything before it. Files are written beside their final name and moved
+ *  into place, and reading maps them and checks the CRC before anything else,
+ *  so a torn or truncated file is refused rather than half loaded.
+ */
+class SnapshotFile {
+    static final int MAGIC = 0x41525053; // "ARPS"
+    static final int FORMAT = 1;
+
+    interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    static void write(File file, Body body) throws IOException {
+        var temp = new File(file.getPath() + ".tmp");
+        var crc = new CRC32();
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(new FileOutputStream(temp), crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            body.writeTo(out);
+            out.flush();
+            out.writeLong(crc.getValue());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a snapshot file and checks it
+     *
+     * @param file the file
+     * @return the body of the file, positioned after the header
+     * @throws IOException if the file cannot be read, is not a snapshot or is damaged
+     */
+    static ByteBuffer open(File file) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not an airport snapshot");
+            }
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - 8;
+            var crc = new CRC32();
+            crc.update(buffer.slice(0, end));
+            if (buffer.getLong(end) != crc.getValue()) {
+                throw new IOException(file + " is damaged: checksum mismatch");
+            }
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not an airport snapshot");
+            }
+            int format = buffer.getInt();
+            if (format != FORMAT) {
+                throw new IOException(file + " has unsupported format " + format);
+            }
+            return buffer.limit(end);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[length(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an array with its length, -1 standing for null
+     */
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    static int[] readInts(ByteBuffer in) throws IOException {
+        int length = in.getInt(in.position());
+        if (length < 0) {
+            in.getInt();
+            return null;
+        }
+        return readInts(in, new int[length]);
+    }
+
+    /**
+     * Reads an array written by writeInts into one of the same length
+     */
+    static int[] readInts(ByteBuffer in, int[] values) throws IOException {
+        if (length(in, 4) != values.length) {
+            throw new IOException("damaged snapshot: array length mismatch");
+        }
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    static long[] readLongs(ByteBuffer in) throws IOException {
+        long[] values = new long[length(in, 8)];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * 8);
+        return values;
+    }
+
+    private static int length(ByteBuffer in, int width) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / width) {
+            throw new IOException("damaged snapshot: bad length " + length);
+        }
+        return length;
+    }
+}
+
+/**
+ *  Shuttle departures for timetable routing with the Connection Scan Algorithm.
+ *
+ *  Every departure is a connection: a shuttle leaving one terminal at a given
+ *  minute and reaching the other terminal time minutes later. Changing shuttles
+ *  at a terminal, including boarding the first one at the origin, takes its
+ *  waiting time. Departures are collected as they are added and sorted into flat
+ *  arrays by departure time on the first query after a change; queries then run
+ *  without locking on that sorted copy.
+ */
+class Timetable {
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final Map<AirportBase.TerminalBase, Integer> ids = new HashMap<>();
+    private final List<AirportBase.TerminalBase> terminals = new ArrayList<>();
+    private final IntStack from = new IntStack();
+    private final IntStack to = new IntStack();
+    private final IntStack departures = new IntStack();
+    private final IntStack shuttles = new IntStack();
+    private final IntStack times = new IntStack();
+    private volatile Connections sorted; // null after departures were added
+
+    /**
+     * Adds a departure of a shuttle
+     *
+     * @param shuttle   the shuttle
+     * @param origin    the terminal it leaves from
+     * @param arrival   the terminal it arrives at
+     * @param departure the departure time, in minutes
+     */
+    synchronized void add(Airport.Shuttle shuttle, AirportBase.TerminalBase origin,
+                          AirportBase.TerminalBase arrival, int departure) {
+        from.push(id(origin));
+        to.push(id(arrival));
+        departures.push(departure);
+        shuttles.push(shuttle.getId());
+        times.push(shuttle.getTime());
+        sorted = null;
+    }
+
+    private int id(AirportBase.TerminalBase terminal) {
+        return ids.computeIfAbsent(terminal, t -> {
+            terminals.add(t);
+            return terminals.size() - 1;
+        });
+    }
+
+    /**
+     * Returns the departures sorted by time, sorting them if any were added
+     * since the last query
+     *
+     * @return the sorted connections
+     */
+    Connections connections() {
+        var current = sorted;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (sorted == null) {
+                sorted = new Connections(this);
+            }
+            return sorted;
+        }
+    }
+
+    /**
+     * An immutable, departure time ordered copy of the timetable
+     */
+    static class Connections {
+        private final AirportBase.TerminalBase[] terminals;
+        private final Map<AirportBase.TerminalBase, Integer> ids;
+        private final int[] waiting;
+        private final int[] from;
+        private final int[] to;
+        private final int[] departure;
+        private final int[] arrival;
+        private final int[] shuttle;
+
+        private Connections(Timetable timetable) {
+            terminals = timetable.terminals.toArray(new AirportBase.TerminalBase[0]);
+            ids = new HashMap<>(timetable.ids);
+            waiting = new int[terminals.length];
+            for (int i = 0; i < terminals.length; i++) {
+                waiting[i] = terminals[i].getWaitingTime();
+            }
+            int count = timetable.departures.size();
+            Integer[] order = new Integer[count];
+            for (int c = 0; c < count; c++) {
+                order[c] = c;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingInt(timetable.departures::get)
+                    .thenComparingInt(c -> timetable.departures.get(c) + timetable.times.get(c)));
+            from = new int[count];
+            to = new int[count];
+            departure = new int[count];
+            arrival = new int[count];
+            shuttle = new int[count];
+            for (int c = 0; c < count; c++) {
+                int i = order[c];
+                from[c] = timetable.from.get(i);
+                to[c] = timetable.to.get(i);
+                departure[c] = timetable.departures.get(i);
+                arrival[c] = departure[c] + timetable.times.get(i);
+                shuttle[c] = timetable.shuttles.get(i);
+            }
+        }
+
+        int indexOf(AirportBase.TerminalBase terminal) {
+            Integer id = ids.get(terminal);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * Returns the index of the first connection departing at or after time
+         */
+        private int firstDeparting(int time) {
+            int lo = 0;
+            int hi = departure.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (departure[mid] < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the journey reaching dest first with a single scan over the
+         * connections departing after the start time; the scan stops at the first
+         * connection departing after dest was reached.
+         *
+         * @param origin the origin terminal ID
+         * @param dest   the destination terminal ID
+         * @param start  the time the passenger is at the origin
+         * @param seats  the seats left on each shuttle, to skip removed shuttles
+         * @return the journey, or null if dest cannot be reached
+         */
+        Journey earliestArrival(int origin, int dest, int start, SeatLedger seats) {
+            int n = terminals.length;
+            int[] reached = new int[n];
+            int[] via = new int[n];
+            Arrays.fill(reached, INFINITY);
+            reached[origin] = start;
+            for (int c = firstDeparting(start + waiting[origin]); c < departure.length; c++) {
+                if (departure[c] >= reached[dest]) {
+                    break;
+                }
+                int u = from[c];
+                if (reached[u] == INFINITY || reached[u] + waiting[u] > departure[c]
+                        || arrival[c] >= reached[to[c]] || seats.seatsLeft(shuttle[c]) <= 0) {
+                    continue;
+                }
+                reached[to[c]] = arrival[c];
+                via[to[c]] = c;
+            }
+            if (reached[dest] == INFINITY) {
+                return null;
+            }
+
+            var legs = new IntStack();
+            for (int v = dest; v != origin; v = from[via[v]]) {
+                legs.push(via[v]);
+            }
+            int[] connections = new int[legs.size()];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = legs.get(connections.length - 1 - i);
+            }
+            return journey(origin, connections, start);
+        }
+
+        /**
+         * Finds every journey worth taking from origin to dest for a passenger at
+         * the origin between two times: no other journey leaves later and arrives
+         * no later. Scans the connections once, latest first, keeping for each
+         * terminal the departures from it that lead to dest and the earliest
+         * arrival each one gives, ordered by decreasing departure time.
+         *
+         * @param origin   the origin terminal ID
+         * @param dest     the destination terminal ID
+         * @param earliest the earliest time the passenger may be at the origin
+         * @param latest   the latest time the passenger may be at the origin
+         * @param seats    the seats left on each shuttle, to skip removed shuttles
+         * @return the journeys by departure time
+         */
+        List<Journey> profile(int origin, int dest, int earliest, int latest, SeatLedger seats) {
+            var profiles = new IntStack[terminals.length]; // (departure, arrival, connection) triples
+            for (int c = departure.length - 1; c >= firstDeparting(earliest + waiting[origin]); c--) {
+                if (from[c] == dest || seats.seatsLeft(shuttle[c]) <= 0) {
+                    continue;
+                }
+                int v = to[c];
+                int best = v == dest ? arrival[c] : earliestFrom(profiles[v], arrival[c] + waiting[v]);
+                if (best == INFINITY) {
+                    continue;
+                }
+                var profile = profiles[from[c]];
+                if (profile == null) {
+                    profile = profiles[from[c]] = new IntStack();
+                }
+                int size = profile.size();
+                if (size > 0 && best >= profile.get(size - 2)) {
+                    continue; // a later departure arrives no later
+                }
+                if (size > 0 && profile.get(size - 3) == departure[c]) {
+                    profile.truncate(size - 3);
+                }
+                profile.push(departure[c]);
+                profile.push(best);
+                profile.push(c);
+            }
+
+            List<Journey> journeys = new ArrayList<>();
+            var profile = profiles[origin];
+            for (int i = profile == null ? -3 : profile.size() - 3; i >= 0; i -= 3) {
+                int start = profile.get(i) - waiting[origin];
+                if (start < earliest || start > latest) {
+                    continue;
+                }
+                var legs = new IntStack();
+                int c = profile.get(i + 2);
+                legs.push(c);
+                while (to[c] != dest) {
+                    var next = profiles[to[c]];
+                    c = next.get(entryFrom(next, arrival[c] + waiting[to[c]]) + 2);
+                    legs.push(c);
+                }
+                journeys.add(journey(origin, legs.toArray(), start));
+            }
+            return journeys;
+        }
+
+        /**
+         * Returns the earliest arrival at dest for a passenger ready to leave a
+         * terminal at the given time, from the terminal's profile
+         */
+        private static int earliestFrom(IntStack profile, int ready) {
+            int i = profile == null ? -1 : entryFrom(profile, ready);
+            return i < 0 ? INFINITY : profile.get(i + 1);
+        }
+
+        /**
+         * Returns the index of the profile entry leaving last at or after ready,
+         * which arrives first among those, or -1 if none leaves that late
+         */
+        private static int entryFrom(IntStack profile, int ready) {
+            int lo = 0;
+            int hi = profile.size() / 3;  // entries lo .. hi - 1 are still candidates
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (profile.get(mid * 3) >= ready) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo == 0 ? -1 : (lo - 1) * 3;
+        }
 
-    public int size() { return size; }
+        private Journey journey(int origin, int[] connections, int start) {
+            var stops = new AirportBase.TerminalBase[connections.length + 1];
+            int[] departures = new int[connections.length];
+            stops[0] = terminals[origin];
+            for (int i = 0; i < connections.length; i++) {
+                stops[i + 1] = terminals[to[connections[i]]];
+                departures[i] = departure[connections[i]];
+            }
+            int end = connections.length == 0 ? start : arrival[connections[connections.length - 1]];
+            return new Journey(Arrays.asList(stops), departures, start, end);
+        }
+    }
+}
 
-    public boolean isEmpty() { return size == 0; }
+/**
+ *  A timetabled route: the terminals in the order travelled, the departure time
+ *  of the shuttle taken from each of them and the arrival time at the last one.
+ */
+class Journey {
+    private final List<AirportBase.TerminalBase> terminals;
+    private final int[] departures;
+    private final int start;
+    private final int arrival;
 
-    private Position<E> addBetween(E e, Node<E> pred, Node<E> succ) {
-        Node<E> newest = new Node<>(e, pred, succ);
-        pred.setNext(newest);
-        succ.setPrev(newest);
-        size++;
-        return newest;
+    Journey(List<AirportBase.TerminalBase> terminals, int[] departures, int start, int arrival) {
+        this.terminals = Collections.unmodifiableList(terminals);
+        this.departures = departures;
+        this.start = start;
+        this.arrival = arrival;
     }
 
-    public Position<E> addLast(E e) {
-        return addBetween(e, tail.getPrev(), tail);
+    public List<AirportBase.TerminalBase> getTerminals() {
+        return terminals;
     }
 
+    /**
+     * Returns the departure time of the shuttle taken from the i-th terminal
+     */
+    public int getDepartureTime(int i) {
+        return departures[i];
+    }
 
-    public E remove(Position<E> p) {
-        Node<E> node = (Node<E>) p;
-        Node<E> previous = node.getPrev();
-        Node<E> preceding = node.getNext();
-        previous.setNext(preceding);
-        preceding.setPrev(previous);
-        size--;
-        E answer = node.getElement();
-        node.setElement(null);
-        node.setNext(null);
-        node.setPrev(null);
-        return answer;
+    /**
+     * Returns the latest time the passenger can be at the origin to make this journey
+     */
+    public int getStartTime() {
+        return start;
     }
 
-    public void forEach(Consumer<E> c) {
-        Node<E> walk = head.getNext();
-        while (walk != tail) {
-            c.accept(walk.getElement());
-            walk = walk.getNext();
-        }
+    public int getArrivalTime() {
+        return arrival;
     }
 
-}
+    /**
+     * Returns the journey as a path, its time being the minutes from the start
+     * time to the arrival
+     */
+    public AirportBase.Path toPath() {
+        return new AirportBase.Path(terminals, arrival - start);
+    }
 
+    @Override
+    public String toString() {
+        return "journey=" + terminals + ", start=" + start + ", arrival=" + arrival;
+    }
+}
 
 /**
+ *  Parallel delta stepping (Meyer and Sanders) over a CompactGraph, for airports
+ *  large enough that one core running Dijkstra's algorithm is the bottleneck.
  *
- * Implemented using Lecture notes and course resources
+ *  Terminals are kept in buckets of width delta by tentative distance. The
+ *  lowest bucket is emptied by relaxing the light shuttles (weighing at most
+ *  delta) of its terminals, over and over since that may add terminals to it
+ *  again; only then are the heavy shuttles of the terminals it settled relaxed,
+ *  once each. Both steps split their terminals into parts that run on the
+ *  common fork join pool, each part writing to its own buckets. The buckets
+ *  are a ring, as no shuttle reaches further than maxWeight beyond the bucket
+ *  being emptied.
  *
- * @param <V> Generic class for vertex
- * @param <E> Generic class for Edge
+ *  A terminal's key is its distance and then its number of shuttles, lowered
+ *  by compare and set. The keys that are left are the same whatever order the
+ *  relaxations ran in: distances equal those of Dijkstra's algorithm, and the
+ *  fewest shuttles among the fastest routes make the parent of a terminal
+ *  well defined. It is the first terminal in its row whose key leads to it,
+ *  which also keeps zero time shuttles from forming cycles.
+ *
+ *  Only the times are guaranteed to match Dijkstra's algorithm. Where several
+ *  routes are equally fast, Dijkstra's algorithm keeps whichever its heap
+ *  settled first, an order a parallel search cannot reproduce, so the route
+ *  chosen here may differ. It is the same from one run to the next.
  */
-class AdjacencyMap<V, E> {
-    private final PositionalLinkedList<Vertex<V>> vertices = new PositionalLinkedList<>();
-    private final PositionalLinkedList<Edge<E>> edges = new PositionalLinkedList<>();
+class DeltaStepping {
+    static final int MIN_TERMINALS = 50_000; // default of Airport.setDeltaSteppingThreshold, to tune per machine
+    private static final int GRAIN = 1024;   // terminals per part worth a task of its own
+    private static final ThreadLocal<DeltaStepping> SEARCHES = ThreadLocal.withInitial(DeltaStepping::new);
+
+    private final int parts = Math.max(1, ForkJoinPool.getCommonPoolParallelism() * 4);
+    private final IntStack[] settled = new IntStack[parts]; // terminals of the current bucket, for the heavy shuttles
+    private final IntStack[] touched = new IntStack[parts]; // terminals given a key, to clear after the search
+    private final SearchStats[] stats = new SearchStats[parts];
+    private AtomicLongArray keys = new AtomicLongArray(0);     // distance << 32 | shuttles + 1, 0 if not reached
+    private AtomicLongArray expanded = new AtomicLongArray(0); // the key each terminal was last expanded with
+    private IntStack[][] buckets = new IntStack[parts][0];     // [part][bucket % ring]
+    private int[] frontier = new int[16];
+    private int frontierSize;
+    private CompactGraph g;
+    private int delta;
+    private int ring;
+    private boolean busy;
+
+    private DeltaStepping() {
+        for (int p = 0; p < parts; p++) {
+            settled[p] = new IntStack();
+            touched[p] = new IntStack();
+            stats[p] = new SearchStats();
+        }
+    }
+
+    /**
+     * Returns the calling thread's search, set up for a snapshot. Its arrays
+     * are kept between searches, as clearing the keys a search gave is cheaper
+     * than allocating them for every terminal. A thread that starts a search
+     * while helping the fork join pool with another one gets a new search.
+     */
+    private static DeltaStepping start(CompactGraph g) {
+        var search = SEARCHES.get();
+        if (search.busy) {
+            search = new DeltaStepping();
+        }
+        search.busy = true;
+        search.g = g;
+        int n = g.size();
+        int degree = Math.max(1, g.offsets[n] / Math.max(1, n));
+        search.delta = Math.max(1, g.maxWeight / degree);
+        search.ring = g.maxWeight / search.delta + 2;
+        if (search.keys.length() < n) {
+            search.keys = new AtomicLongArray(n);
+            search.expanded = new AtomicLongArray(n);
+        }
+        if (search.buckets[0].length < search.ring) {
+            for (int p = 0; p < search.parts; p++) {
+                var grown = Arrays.copyOf(search.buckets[p], search.ring);
+                for (int b = search.buckets[p].length; b < search.ring; b++) {
+                    grown[b] = new IntStack();
+                }
+                search.buckets[p] = grown;
+            }
+        }
+        for (var counts : search.stats) {
+            counts.reset();
+        }
+        return search;
+    }
+
+    /**
+     * Clears the keys the search gave and whatever its buckets still hold
+     */
+    private void finish() {
+        java.util.stream.IntStream.range(0, parts).parallel().forEach(p -> {
+            var terminals = touched[p];
+            for (int i = 0; i < terminals.size(); i++) {
+                keys.set(terminals.get(i), 0);
+                expanded.set(terminals.get(i), 0);
+            }
+            terminals.clear();
+            settled[p].clear();
+            for (var bucket : buckets[p]) {
+                bucket.clear();
+            }
+        });
+        g = null;
+        busy = false;
+    }
+
+    /**
+     * Finds a fastest route from src to dest and writes it into a search space,
+     * as if a search had found it. Stops once the bucket of dest is emptied.
+     *
+     * @param g     the snapshot to search
+     * @param src   the source terminal ID
+     * @param dest  the destination terminal ID
+     * @param space the search space to write the route to
+     * @param stats counters to fill in
+     */
+    static void search(CompactGraph g, int src, int dest, SearchSpace space, SearchStats stats) {
+        var search = start(g);
+        try {
+            search.run(src, dest);
+            search.addStats(stats);
+            space.reset(g.size());
+            space.reach(src, 0, -1, -1);
+            if (search.keys.get(dest) == 0) {
+                return;
+            }
+            for (int v = dest; v != src; ) {
+                int slot = search.parentSlot(v);
+                int u = g.targets[slot];
+                space.reach(v, distance(search.keys.get(v)), u, slot);
+                v = u;
+            }
+        } finally {
+            search.finish();
+        }
+    }
+
+    /**
+     * Finds the fastest routes from src to every terminal
+     *
+     * @param g     the snapshot to search
+     * @param src   the source terminal ID
+     * @param stats counters to fill in
+     * @return the routes
+     */
+    static FastestPaths searchAll(CompactGraph g, int src, SearchStats stats) {
+        var search = start(g);
+        try {
+            search.run(src, -1);
+            search.addStats(stats);
+            int n = g.size();
+            int[] distance = new int[n];
+            int[] parent = new int[n];
+            int[] via = new int[n];
+            java.util.stream.IntStream.range(0, n).parallel().forEach(v -> {
+                long key = search.keys.get(v);
+                distance[v] = key == 0 ? -1 : distance(key);
+                via[v] = key == 0 || v == src ? -1 : search.parentSlot(v);
+                parent[v] = via[v] < 0 ? -1 : g.targets[via[v]];
+            });
+            return new FastestPaths(g, src, distance, parent, via);
+        } finally {
+            search.finish();
+        }
+    }
+
+    private static long key(int distance, int shuttles) {
+        return (long) distance << 32 | (shuttles + 1);
+    }
+
+    private static int distance(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int shuttles(long key) {
+        return (int) key - 1;
+    }
+
+    private void run(int src, int dest) {
+        keys.set(src, key(0, 0));
+        touched[0].push(src);
+        frontier[0] = src;
+        frontierSize = 1;
+        stats[0].inserts++;
+        int bucket = 0;
+        while (true) {
+            while (frontierSize > 0) {
+                expandFrontier(bucket);
+                gather(bucket);
+            }
+            long key = dest >= 0 ? keys.get(dest) : 0;
+            if (key != 0 && distance(key) / delta <= bucket) {
+                break; // the key of dest is final once its bucket is empty
+            }
+            relaxHeavy();
+            int next = -1;
+            for (int b = bucket + 1; b < bucket + ring && next < 0; b++) {
+                for (int p = 0; p < parts && next < 0; p++) {
+                    if (!buckets[p][b % ring].isEmpty()) {
+                        next = b;
+                    }
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            bucket = next;
+            gather(bucket);
+        }
+    }
+
+    /**
+     * Expands the frontier, split into one range per part when it is large
+     * enough to be worth running in parallel
+     */
+    private void expandFrontier(int bucket) {
+        int size = frontierSize;
+        int tasks = Math.min(parts, (size + GRAIN - 1) / GRAIN);
+        if (tasks <= 1) {
+            expand(0, 0, size, bucket);
+            return;
+        }
+        java.util.stream.IntStream.range(0, tasks).parallel().forEach(p ->
+                expand(p, (int) ((long) size * p / tasks), (int) ((long) size * (p + 1) / tasks), bucket));
+    }
+
+    /**
+     * Relaxes the heavy shuttles of the terminals every part settled in the bucket
+     */
+    private void relaxHeavy() {
+        int size = 0;
+        for (var done : settled) {
+            size += done.size();
+        }
+        if (size <= GRAIN) {
+            for (int p = 0; p < parts; p++) {
+                relaxHeavy(p);
+            }
+        } else {
+            java.util.stream.IntStream.range(0, parts).parallel().forEach(this::relaxHeavy);
+        }
+    }
+
+    /**
+     * Relaxes the light shuttles of the frontier terminals still in the bucket
+     */
+    private void expand(int part, int from, int to, int bucket) {
+        var counts = stats[part];
+        for (int i = from; i < to; i++) {
+            int u = frontier[i];
+            counts.extracts++;
+            long key = keys.get(u);
+            int du = distance(key);
+            if (du / delta != bucket) {
+                continue; // lowered into a bucket emptied already
+            }
+            long previous = expanded.getAndSet(u, key);
+            if (previous == key) {
+                continue; // a copy of u was expanded with the same key
+            }
+            counts.settled++;
+            if (previous == 0 || distance(previous) / delta != bucket) {
+                settled[part].push(u);
+            }
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int weight = g.times[slot] + g.waiting[u];
+                if (weight <= delta && g.isOpen(slot)) {
+                    relax(part, g.targets[slot], key(du + weight, shuttles(key) + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Relaxes the heavy shuttles of the terminals settled in the bucket
+     */
+    private void relaxHeavy(int part) {
+        var done = settled[part];
+        for (int i = 0; i < done.size(); i++) {
+            int u = done.get(i);
+            long key = keys.get(u);
+            int du = distance(key);
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int weight = g.times[slot] + g.waiting[u];
+                if (weight > delta && g.isOpen(slot)) {
+                    relax(part, g.targets[slot], key(du + weight, shuttles(key) + 1));
+                }
+            }
+        }
+        done.clear();
+    }
+
+    private void relax(int part, int v, long key) {
+        var counts = stats[part];
+        counts.relaxed++;
+        long current = keys.get(v);
+        while (current == 0 || key < current) {
+            if (keys.compareAndSet(v, current, key)) {
+                if (current == 0) {
+                    counts.inserts++;
+                    touched[part].push(v);
+                } else {
+                    counts.decreases++;
+                }
+                buckets[part][distance(key) / delta % ring].push(v);
+                return;
+            }
+            current = keys.get(v);
+        }
+    }
+
+    /**
+     * Moves the terminals of a bucket from every part into the frontier
+     */
+    private void gather(int bucket) {
+        int size = 0;
+        for (int p = 0; p < parts; p++) {
+            size += buckets[p][bucket % ring].size();
+        }
+        if (frontier.length < size) {
+            frontier = new int[Math.max(size, frontier.length * 2)];
+        }
+        frontierSize = 0;
+        for (int p = 0; p < parts; p++) {
+            var terminals = buckets[p][bucket % ring];
+            for (int i = 0; i < terminals.size(); i++) {
+                frontier[frontierSize++] = terminals.get(i);
+            }
+            terminals.clear();
+        }
+    }
+
+    /**
+     * Returns the slot of the shuttle a fastest route with the fewest shuttles
+     * takes into v: the first one in the row of v whose other end has the key
+     * leading to v. The slot is in the row of v, which holds the same shuttle
+     * and time as the one in the row of the parent.
+     */
+    private int parentSlot(int v) {
+        long key = keys.get(v);
+        for (int slot = g.offsets[v]; slot < g.offsets[v + 1]; slot++) {
+            int u = g.targets[slot];
+            long parentKey = keys.get(u);
+            if (parentKey != 0 && g.isOpen(slot)
+                    && key(distance(parentKey) + g.times[slot] + g.waiting[u], shuttles(parentKey) + 1) == key) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("no parent for terminal " + v);
+    }
+
+    private void addStats(SearchStats total) {
+        total.reset();
+        for (var counts : stats) {
+            total.settled += counts.settled;
+            total.relaxed += counts.relaxed;
+            total.inserts += counts.inserts;
+            total.decreases += counts.decreases;
+            total.extracts += counts.extracts;
+        }
+    }
+}
+
+/**
+ *  The fastest routes from one origin to every terminal of a snapshot
+ */
+class FastestPaths {
+    private final CompactGraph graph;
+    private final int origin;
+    private final int[] distance;
+    private final int[] parent;
+    private final int[] via;
+
+    /**
+     * @param graph    the snapshot searched
+     * @param origin   the origin terminal ID
+     * @param distance the time to each terminal, -1 where it is not reachable
+     * @param parent   the terminal before each one on its route, -1 for the origin
+     * @param via      the slot of the shuttle taken from the parent
+     */
+    FastestPaths(CompactGraph graph, int origin, int[] distance, int[] parent, int[] via) {
+        this.graph = graph;
+        this.origin = origin;
+        this.distance = distance;
+        this.parent = parent;
+        this.via = via;
+    }
+
+    /**
+     * Returns the time of the fastest path to a terminal, as findFastestPath
+     * would count it
+     *
+     * @param destination the destination terminal
+     * @return the time, or -1 if the destination is not reachable
+     */
+    public int getTime(AirportBase.TerminalBase destination) {
+        int d = graph.indexOf(destination);
+        if (d < 0 || distance[d] < 0) {
+            return -1;
+        }
+        return d == origin ? graph.waiting[origin] : distance[d];
+    }
+
+    /**
+     * Returns the fastest path to a terminal
+     *
+     * @param destination the destination terminal
+     * @return the path, or null if the destination is not reachable
+     */
+    public AirportBase.Path getPath(AirportBase.TerminalBase destination) {
+        int d = graph.indexOf(destination);
+        if (d < 0 || distance[d] < 0) {
+            return null;
+        }
+        int hops = 0;
+        for (int v = d; v != origin; v = parent[v]) {
+            hops++;
+        }
+        int[] terminals = new int[hops + 1];
+        int[] shuttles = new int[hops];
+        for (int v = d; v != origin; v = parent[v]) {
+            terminals[hops] = v;
+            shuttles[--hops] = graph.shuttleIds[via[v]];
+        }
+        terminals[0] = origin;
+        var route = new CompactRoute(graph.terminals, terminals, shuttles, getTime(destination));
+        return new AirportBase.Path(route, route.time);
+    }
+}
+
+/**
+ *  Counters filled in by the searches in GraphUtilities
+ */
+class SearchStats {
+    int settled;
+    int relaxed;   // shuttles looked at from a settled terminal
+    int inserts;   // terminals put in the queue
+    int decreases; // keys lowered in the queue
+    int extracts;  // terminals taken out of the queue
+    int searches;  // how many searches were added to these counters
+
+    void reset() {
+        settled = 0;
+        relaxed = 0;
+        inserts = 0;
+        decreases = 0;
+        extracts = 0;
+        searches = 0;
+    }
+
+    /**
+     * Adds the counters of one search to these
+     *
+     * @param search the counters of the search
+     */
+    void add(SearchStats search) {
+        settled += search.settled;
+        relaxed += search.relaxed;
+        inserts += search.inserts;
+        decreases += search.decreases;
+        extracts += search.extracts;
+        searches++;
+    }
+}
+
+/**
+ *  Routing metrics of an airport. Every query and every shuttle filled up is
+ *  counted; one query in sampleEvery, picked at random, is also timed and has
+ *  the counters of its searches added up, so that sampling can stay on under
+ *  load. Latencies go to a histogram with a bucket per power of two nanoseconds.
+ *  Counters are LongAdders, so recording never contends between threads.
+ */
+class RoutingMetrics {
+    static final int BUCKETS = 64;
+
+    /**
+     * The kinds of route query that are measured apart
+     */
+    enum Query {
+        /* findShortestPath */
+        SHORTEST,
+        /* findFastestPath */
+        FASTEST,
+        /* reserveFastestPath and allocatePassengers */
+        PARTY
+    }
+
+    private static class Counters {
+        final LongAdder queries = new LongAdder();
+        final LongAdder sampled = new LongAdder();
+        final LongAdder searches = new LongAdder();
+        final LongAdder settled = new LongAdder();
+        final LongAdder relaxed = new LongAdder();
+        final LongAdder inserts = new LongAdder();
+        final LongAdder decreases = new LongAdder();
+        final LongAdder extracts = new LongAdder();
+        final LongAdder pathLength = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    }
+
+    private final Counters[] counters = new Counters[Query.values().length];
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private volatile int sampleEvery;
+
+    RoutingMetrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new Counters();
+        }
+    }
+
+    /**
+     * Sets how many queries there are for each one sampled
+     *
+     * @param sampleEvery 1 to sample every query, 0 to sample none
+     */
+    void setSampleEvery(int sampleEvery) {
+        if (sampleEvery < 0) {
+            throw new IllegalArgumentException("sampleEvery must not be negative");
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * Counts a query and decides whether it is sampled
+     *
+     * @param query the kind of query
+     * @return true if the query should be timed and recorded
+     */
+    boolean sample(Query query) {
+        counters[query.ordinal()].queries.increment();
+        int every = sampleEvery;
+        return every == 1 || every > 1 && ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    /**
+     * Records a sampled query
+     *
+     * @param query      the kind of query
+     * @param nanos      how long it took
+     * @param stats      the counters of its searches, added up
+     * @param pathLength the number of shuttles of the route found, 0 if none
+     */
+    void record(Query query, long nanos, SearchStats stats, int pathLength) {
+        var c = counters[query.ordinal()];
+        c.sampled.increment();
+        c.searches.add(stats.searches);
+        c.settled.add(stats.settled);
+        c.relaxed.add(stats.relaxed);
+        c.inserts.add(stats.inserts);
+        c.decreases.add(stats.decreases);
+        c.extracts.add(stats.extracts);
+        c.pathLength.add(pathLength);
+        c.nanos.add(nanos);
+        c.latency.incrementAndGet(bucket(nanos));
+    }
+
+    private static int bucket(long nanos) {
+        return 63 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+    }
+
+    /**
+     * Counts a shuttle closed because its seats ran out
+     */
+    void shuttleExhausted() {
+        exhausted.increment();
+    }
+
+    /**
+     * Counts a route that could not be booked because a shuttle of it filled
+     * up after the search, so that the query had to search again
+     */
+    void bookingConflict() {
+        conflicts.increment();
+    }
+
+    /**
+     * Clears every counter and histogram, keeping the sampling rate
+     */
+    void reset() {
+        for (var c : counters) {
+            for (var adder : List.of(c.queries, c.sampled, c.searches, c.settled, c.relaxed, c.inserts,
+                    c.decreases, c.extracts, c.pathLength, c.nanos)) {
+                adder.reset();
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                c.latency.set(i, 0);
+            }
+        }
+        exhausted.reset();
+        conflicts.reset();
+    }
+
+    /**
+     * Reads the counters. Queries running meanwhile may be partly counted.
+     *
+     * @return the metrics at this point
+     */
+    Snapshot snapshot() {
+        var queries = new QueryMetrics[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            var c = counters[i];
+            long[] latency = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                latency[b] = c.latency.get(b);
+            }
+            queries[i] = new QueryMetrics(c.queries.sum(), c.sampled.sum(), c.searches.sum(), c.settled.sum(),
+                    c.relaxed.sum(), c.inserts.sum(), c.decreases.sum(), c.extracts.sum(), c.pathLength.sum(),
+                    c.nanos.sum(), latency);
+        }
+        return new Snapshot(queries, exhausted.sum(), conflicts.sum(), sampleEvery);
+    }
+
+    /**
+     * The metrics of an airport at one point in time
+     */
+    static class Snapshot {
+        private final QueryMetrics[] queries;
+        private final long exhaustedShuttles;
+        private final long bookingConflicts;
+        private final int sampleEvery;
+
+        Snapshot(QueryMetrics[] queries, long exhaustedShuttles, long bookingConflicts, int sampleEvery) {
+            this.queries = queries;
+            this.exhaustedShuttles = exhaustedShuttles;
+            this.bookingConflicts = bookingConflicts;
+            this.sampleEvery = sampleEvery;
+        }
+
+        public QueryMetrics get(Query query) {
+            return queries[query.ordinal()];
+        }
+
+        /**
+         * Returns how many shuttles were closed because their seats ran out
+         */
+        public long getExhaustedShuttles() {
+            return exhaustedShuttles;
+        }
 
+        /**
+         * Returns how many found routes could not be booked and were searched again
+         */
+        public long getBookingConflicts() {
+            return bookingConflicts;
+        }
 
-    public class Vertex<V> {
-        private V element;
-        private Position<Vertex<V>> position;
-        private Map<Vertex<V>, Edge<E>> incoming, outgoing;
+        public int getSampleEvery() {
+            return sampleEvery;
+        }
 
-        public Vertex(V element) {
-            this.element = element;
-            incoming = new HashMap<>();
-            outgoing = incoming;
+        @Override
+        public String toString() {
+            var sb = new StringBuilder();
+            for (var query : Query.values()) {
+                sb.append(query).append(": ").append(get(query)).append('\n');
+            }
+            return sb.append("exhausted=").append(exhaustedShuttles)
+                    .append(", conflicts=").append(bookingConflicts)
+                    .append(", sampleEvery=").append(sampleEvery).toString();
         }
+    }
 
-        public V getElement() {
-            return element;
+    /**
+     * The metrics of one kind of query. Search counters and latencies only
+     * cover the sampled queries; the means are per sampled query.
+     */
+    static class QueryMetrics {
+        private final long queries;
+        private final long sampled;
+        private final long searches;
+        private final long settled;
+        private final long relaxed;
+        private final long inserts;
+        private final long decreases;
+        private final long extracts;
+        private final long pathLength;
+        private final long nanos;
+        private final long[] latency;
+
+        QueryMetrics(long queries, long sampled, long searches, long settled, long relaxed, long inserts,
+                     long decreases, long extracts, long pathLength, long nanos, long[] latency) {
+            this.queries = queries;
+            this.sampled = sampled;
+            this.searches = searches;
+            this.settled = settled;
+            this.relaxed = relaxed;
+            this.inserts = inserts;
+            this.decreases = decreases;
+            this.extracts = extracts;
+            this.pathLength = pathLength;
+            this.nanos = nanos;
+            this.latency = latency;
         }
 
-        public Position<Vertex<V>> getPosition() {
-            return position;
+        public long getQueries() {
+            return queries;
         }
 
-        public void setPosition(Position<Vertex<V>> position) {
-            this.position = position;
+        public long getSampled() {
+            return sampled;
         }
 
-        public Map<Vertex<V>, Edge<E>> getIncoming() {
-            return incoming;
+        /**
+         * Returns the searches run by the sampled queries, more than one per
+         * query when booking a route failed and it was searched again
+         */
+        public long getSearches() {
+            return searches;
         }
 
-        public Map<Vertex<V>, Edge<E>> getOutgoing() {
-            return outgoing;
+        public long getSettled() {
+            return settled;
         }
-    }
 
-    public  class Edge<E> {
-        private E element;
-        private Position<Edge<E>> position;
-        private Vertex<V>[ ] endpoints;
+        public long getRelaxed() {
+            return relaxed;
+        }
 
-        public Edge(Vertex<V> u, Vertex<V> v, E elem) {
-            element = elem;
-            endpoints = (Vertex<V>[ ]) new Vertex[2];
-            endpoints[0] = u;
-            endpoints[1] = v;
+        public long getInserts() {
+            return inserts;
         }
 
-        public E getElement() {
-            return element;
+        public long getDecreases() {
+            return decreases;
         }
 
+        public long getExtracts() {
+            return extracts;
+        }
 
-        public Position<Edge<E>> getPosition() {
-            return position;
+        /**
+         * Returns the number of shuttles of the routes found, added up
+         */
+        public long getPathLength() {
+            return pathLength;
         }
 
-        public void setPosition(Position<Edge<E>> position) {
-            this.position = position;
+        public long getTotalNanos() {
+            return nanos;
         }
 
-        public Vertex<V>[] getEndpoints() {
-            return endpoints;
+        public double mean(long total) {
+            return sampled == 0 ? 0 : (double) total / sampled;
         }
 
-    }
+        /**
+         * Estimates a latency percentile from the histogram. The answer is the
+         * upper bound of the bucket it falls in, so it is at most twice too high.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the latency in nanoseconds, 0 if no query was sampled
+         */
+        public long latencyPercentile(double percentile) {
+            long rank = (long) Math.ceil(sampled * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int b = 0; b < latency.length; b++) {
+                seen += latency[b];
+                if (seen >= Math.max(1, rank)) {
+                    return (2L << b) - 1;
+                }
+            }
+            return 0;
+        }
 
-    public Edge<E> getEdge(Vertex<V> u, Vertex<V> v) {
-        return u.getOutgoing().get(v);
-    }
+        /**
+         * Returns the number of sampled queries in each histogram bucket; bucket
+         * b holds the latencies from 2^b to 2^(b+1) - 1 nanoseconds
+         */
+        public long[] getLatencyHistogram() {
+            return latency.clone();
+        }
 
-    public List<Edge<E>> outgoingEdges(Vertex<V> v) {
-        return v.getOutgoing().values().stream().collect(Collectors.toList());
+        @Override
+        public String toString() {
+            return String.format("queries=%d, sampled=%d, searches/query=%.2f, settled=%.1f, relaxed=%.1f, "
+                            + "inserts=%.1f, decreases=%.1f, extracts=%.1f, pathLength=%.2f, "
+                            + "p50=%dns, p99=%dns", queries, sampled, mean(searches), mean(settled), mean(relaxed),
+                    mean(inserts), mean(decreases), mean(extracts), mean(pathLength), latencyPercentile(50),
+                    latencyPercentile(99));
+        }
     }
+}
 
-    public Vertex<V> insertVertex(V element) {
-        Vertex<V> v = new Vertex<>(element);
-        // set the position so we can remove it later
-        v.setPosition(vertices.addLast(v));
-        return v;
+/**
+ *  Publishes the routing metrics of an airport over JMX. Attributes are named
+ *  after the kind of query, e.g. FastestQueries, FastestMeanSettled and
+ *  FastestLatencyP99Nanos, plus ExhaustedShuttles, BookingConflicts and the
+ *  writable SampleEvery; the reset operation clears the counters.
+ */
+class RoutingMetricsMBean implements DynamicMBean {
+    private final RoutingMetrics metrics;
+    private final Map<String, Function<RoutingMetrics.Snapshot, Object>> attributes = new LinkedHashMap<>();
+    private final MBeanInfo info;
+
+    RoutingMetricsMBean(RoutingMetrics metrics) {
+        this.metrics = metrics;
+        for (var query : RoutingMetrics.Query.values()) {
+            String name = query.name().charAt(0) + query.name().substring(1).toLowerCase();
+            attributes.put(name + "Queries", s -> s.get(query).getQueries());
+            attributes.put(name + "Sampled", s -> s.get(query).getSampled());
+            attributes.put(name + "MeanSearches", s -> s.get(query).mean(s.get(query).getSearches()));
+            attributes.put(name + "MeanSettled", s -> s.get(query).mean(s.get(query).getSettled()));
+            attributes.put(name + "MeanRelaxed", s -> s.get(query).mean(s.get(query).getRelaxed()));
+            attributes.put(name + "MeanInserts", s -> s.get(query).mean(s.get(query).getInserts()));
+            attributes.put(name + "MeanDecreases", s -> s.get(query).mean(s.get(query).getDecreases()));
+            attributes.put(name + "MeanExtracts", s -> s.get(query).mean(s.get(query).getExtracts()));
+            attributes.put(name + "MeanPathLength", s -> s.get(query).mean(s.get(query).getPathLength()));
+            attributes.put(name + "MeanLatencyNanos", s -> s.get(query).mean(s.get(query).getTotalNanos()));
+            attributes.put(name + "LatencyP50Nanos", s -> s.get(query).latencyPercentile(50));
+            attributes.put(name + "LatencyP99Nanos", s -> s.get(query).latencyPercentile(99));
+            attributes.put(name + "LatencyP999Nanos", s -> s.get(query).latencyPercentile(99.9));
+        }
+        attributes.put("ExhaustedShuttles", RoutingMetrics.Snapshot::getExhaustedShuttles);
+        attributes.put("BookingConflicts", RoutingMetrics.Snapshot::getBookingConflicts);
+        attributes.put("SampleEvery", RoutingMetrics.Snapshot::getSampleEvery);
+
+        var infos = new ArrayList<MBeanAttributeInfo>();
+        for (var name : attributes.keySet()) {
+            String type = name.contains("Mean") ? "double"
+                    : name.equals("SampleEvery") ? "int" : "long";
+            infos.add(new MBeanAttributeInfo(name, type, name, true, name.equals("SampleEvery"), false));
+        }
+        var reset = new MBeanOperationInfo("reset", "Clears the counters", new MBeanParameterInfo[0], "void",
+                MBeanOperationInfo.ACTION);
+        info = new MBeanInfo(getClass().getName(), "Airport routing metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reset}, null);
     }
 
-    public void removeVertex(Vertex<V> v) {
-        var outgoing = new ArrayList<>(v.getOutgoing().values());
-        for (Edge<E> e : outgoing)
-            removeEdge(e);
-        var incoming = new ArrayList<>(v.getIncoming().values());
-        for (Edge<E> e : incoming)
-            removeEdge(e);
-        vertices.remove(v.getPosition());
-        // make the vertex invalid
-        v.setPosition(null);
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        var reader = attributes.get(attribute);
+        if (reader == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return reader.apply(metrics.snapshot());
     }
 
-    public void removeEdge(Edge<E> e) {
-        Vertex<V>[] verts = e.getEndpoints();
-        verts[0].getOutgoing().remove(verts[1]);
-        verts[1].getIncoming().remove(verts[0]);
-        edges.remove(e.getPosition());
-        // make the edge invalid
-        e.setPosition(null);
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+        if (!attribute.getName().equals("SampleEvery")) {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+        if (!(attribute.getValue() instanceof Integer) || (Integer) attribute.getValue() < 0) {
+            throw new InvalidAttributeValueException("SampleEvery takes a non negative int");
+        }
+        metrics.setSampleEvery((Integer) attribute.getValue());
     }
 
-    public Vertex<V> opposite(Vertex<V> v, Edge<E> e) {
-        Vertex<V>[] endpoints = e.getEndpoints();
-        if (endpoints[0] == v)
-            return endpoints[1];
-        else if (endpoints[1] == v)
-            return endpoints[0];
-        else
-            return null; // v is not incident to this edge
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        var snapshot = metrics.snapshot(); // one snapshot, so the values agree with each other
+        var list = new AttributeList();
+        for (var name : names) {
+            var reader = attributes.get(name);
+            if (reader != null) {
+                list.add(new Attribute(name, reader.apply(snapshot)));
+            }
+        }
+        return list;
     }
 
-    public Edge<E> insertEdge(Vertex<V> u, Vertex<V> v, E element)  {
-        if (getEdge(u, v) == null) {
-            Edge<E> e = new Edge<>(u, v, element);
-            e.setPosition(edges.addLast(e));
-            u.getOutgoing().put(v, e);
-            v.getIncoming().put(u, e);
-            return e;
-        } else {
-            return null;
+    @Override
+    public AttributeList setAttributes(AttributeList list) {
+        var set = new AttributeList();
+        for (var attribute : list.asList()) {
+            try {
+                setAttribute(attribute);
+                set.add(attribute);
+            } catch (JMException e) {
+                // left out of the returned list
+            }
         }
+        return set;
     }
 
-    public PositionalLinkedList<Vertex<V>> getVertices() {
-        return vertices;
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        if (!action.equals("reset")) {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+        metrics.reset();
+        return null;
     }
 
-    public PositionalLinkedList<Edge<E>> getEdges() {
-        return edges;
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
     }
 }
 
 /**
- *
- *
- * A Generic bare bone Heap Adaptable Priority Queue to help with Dijkstra's Algorithm
- *
- * @param <K>
- * @param <V>
+ *  Utility class containing graph algorithms
  */
-class PriorityQueue<K,V> {
-    private ArrayList<Entry<K,V>> heap = new ArrayList<>();
-    private Comparator<K> comparator;
-
-    public PriorityQueue() {
-       this.comparator = (a, b) -> ((Comparable<K>) a).compareTo(b);
-    }
-
-    public int size() {
-        return heap.size();
-    }
-
-    public boolean isEmpty() {
-        return size() == 0;
-    }
+class GraphUtilities {
+    private static final ThreadLocal<SearchWorkspace> WORKSPACES = ThreadLocal.withInitial(SearchWorkspace::new);
 
-    /* Swap the entries at indices i and j in the array list */
-    private void heapSwap(int i, int j) {
-        Entry<K,V> temporary = heap.get(i);
-        heap.set(i, heap.get(j));
-        heap.set(j, temporary);
+    /**
+     * Returns the search workspace of the calling thread
+     *
+     * @return the workspace
+     */
+    public static SearchWorkspace workspace() {
+        return WORKSPACES.get();
     }
 
-    private void swap(int i, int j) {
-        heapSwap(i,j); // perform heap swap
-        // Reset the  entry's index
-        heap.get(i).setIndex(i);
-        heap.get(j).setIndex(j);
+    /**
+     * Dijkstra's algorithm. The weight of a shuttle is its time plus the
+     * waiting time of the terminal it is boarded at. Terminals only enter the
+     * heap once they are reached, and the search stops as soon as dest is settled.
+     *
+     * @param g     the snapshot to search
+     * @param src   the source terminal ID
+     * @param dest  the destination terminal ID, or -1 to search the whole graph
+     * @param space the search space to fill in
+     * @param stats counters to fill in
+     */
+    public static void fastestPathDijkstra(CompactGraph g, int src, int dest, SearchSpace space, SearchStats stats) {
+        fastestPathDijkstra(g, src, dest, false, space, stats);
     }
 
     /**
-     *  Restores the heap property through moving the entry at index j upward or downward
-     * @param j index
+     * Dijkstra's algorithm, optionally over the reversed graph: with reverse set
+     * the distance of v is the time needed to get from v to src, so the waiting
+     * time is paid at the terminal being relaxed into.
+     *
+     * @param g       the snapshot to search
+     * @param src     the source terminal ID
+     * @param dest    the destination terminal ID, or -1 to search the whole graph
+     * @param reverse whether to search towards src instead of away from it
+     * @param space   the search space to fill in
+     * @param stats   counters to fill in
      */
-    private void bubble(int j) {
-        if (j > 0 && compareEntryKeys(heap.get(j), heap.get(parentOf(j))) < 0)
-            upHeap(j);
-        else
-            downHeap(j);                   //  it may not need to move
+    public static void fastestPathDijkstra(CompactGraph g, int src, int dest, boolean reverse, SearchSpace space,
+                                           SearchStats stats) {
+        space.reset(g.size());
+        dijkstra(g, src, dest, reverse, space.heap, space, stats);
     }
 
-    public Entry<K,V> insert(K key, V value) {
-        Entry<K,V> newestEntry = new Entry<>(key, value, heap.size());
-        heap.add(newestEntry);                // adds new entry to the end of the list
-        upHeap(heap.size() - 1);         // perform up heap on newly added entry
-        return newestEntry;
+    /**
+     * Dijkstra's algorithm with Dial's bucket queue in place of the binary heap.
+     * Falls back to the heap when a shuttle weighs BucketQueue.MAX_WIDTH minutes
+     * or more, as the buckets would then cost more than they save.
+     *
+     * @param g     the snapshot to search
+     * @param src   the source terminal ID
+     * @param dest  the destination terminal ID, or -1 to search the whole graph
+     * @param space the search space to fill in
+     * @param stats counters to fill in
+     */
+    public static void dialDijkstra(CompactGraph g, int src, int dest, SearchSpace space, SearchStats stats) {
+        space.reset(g.size());
+        if (g.maxWeight >= BucketQueue.MAX_WIDTH) {
+            dijkstra(g, src, dest, false, space.heap, space, stats);
+            return;
+        }
+        space.buckets.reset(g.maxWeight + 1);
+        dijkstra(g, src, dest, false, space.buckets, space, stats);
     }
 
-    public void remove(Entry<K,V> entry)  {
-        if (entry != null) {
-            int j = entry.getIndex();
-            if (j == heap.size() - 1)        // entry is in last position
-                heap.remove(heap.size() - 1);  // so we just remove it
-            else {
-                swap(j, heap.size() - 1);      // swap entry with last position
-                heap.remove(heap.size() - 1);  // then we get rid of it
-                bubble(j);                     // then fix entry displaced by the swapping
+    private static void dijkstra(CompactGraph g, int src, int dest, boolean reverse, IntPriorityQueue pq,
+                                 SearchSpace space, SearchStats stats) {
+        stats.reset();
+        space.reach(src, 0, -1, -1);
+        pq.insert(src, 0);
+        stats.inserts++;
+        while (!pq.isEmpty()) {
+            int u = pq.removeMin();
+            space.settle(u);
+            stats.extracts++;
+            stats.settled++;
+            if (u == dest) {
+                break;                                     // its distance is final
+            }
+            int du = space.distance[u];
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (space.isSettled(v) || !g.isOpen(slot)) {
+                    continue;
+                }
+                stats.relaxed++;
+                // do relaxation on edge (u,v)
+                int dv = du + g.times[slot] + g.waiting[reverse ? v : u];
+                if (!space.isReached(v)) {
+                    space.reach(v, dv, u, slot);           // first time v is reached
+                    pq.insert(v, dv);
+                    stats.inserts++;
+                } else if (dv < space.distance[v]) {       // is it a better path to v
+                    space.reach(v, dv, u, slot);
+                    pq.decreaseKey(v, dv);
+                    stats.decreases++;
+                }
             }
         }
     }
 
-    public Entry<K,V> removeMin() {
-        if (heap.isEmpty()) return null;
-        Entry<K,V> entry = heap.get(0);
-        swap(0, heap.size() - 1);
-        heap.remove(heap.size() - 1);
-        downHeap(0);
-        return entry;
-    }
-
-
-
-    public void replaceKey(Entry<K,V> entry, K key) {
-        if (entry != null && key != null) {
-            entry.setKey(key);
-            bubble(entry.getIndex());
+    /**
+     * Dijkstra's algorithm restricted to the shuttles that have at least
+     * minSeats seats left, to route a party travelling together
+     *
+     * @param g        the snapshot to search
+     * @param src      the source terminal ID
+     * @param dest     the destination terminal ID
+     * @param seats    the seats left on each shuttle
+     * @param minSeats the size of the party
+     * @param space    the search space to fill in
+     * @param stats    counters to fill in
+     */
+    public static void fastestPathDijkstra(CompactGraph g, int src, int dest, SeatLedger seats, int minSeats,
+                                           SearchSpace space, SearchStats stats) {
+        space.reset(g.size());
+        stats.reset();
+        var pq = space.heap;
+        space.reach(src, 0, -1, -1);
+        pq.insert(src, 0);
+        stats.inserts++;
+        while (!pq.isEmpty()) {
+            int u = pq.removeMin();
+            space.settle(u);
+            stats.extracts++;
+            stats.settled++;
+            if (u == dest) {
+                break;
+            }
+            int du = space.distance[u];
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (space.isSettled(v) || !g.isOpen(slot) || seats.seatsLeft(g.shuttleIds[slot]) < minSeats) {
+                    continue;
+                }
+                stats.relaxed++;
+                int dv = du + g.times[slot] + g.waiting[u];
+                if (!space.isReached(v)) {
+                    space.reach(v, dv, u, slot);
+                    pq.insert(v, dv);
+                    stats.inserts++;
+                } else if (dv < space.distance[v]) {
+                    space.reach(v, dv, u, slot);
+                    pq.decreaseKey(v, dv);
+                    stats.decreases++;
+                }
+            }
         }
     }
 
-    private int compareEntryKeys(Entry<K,V> a, Entry<K,V> b) {
-        return comparator.compare(a.getKey(), b.getKey());
-    }
-
-
-    // Utility methods
-    public int parentOf(int j) { return (j-1) / 2; }
-    public int leftOf(int j) { return 2*j + 1; }
-    public int rightOf(int j) { return 2*j + 2; }
-    public boolean hasLeft(int j) { return leftOf(j) < heap.size(); }
-    public boolean hasRight(int j) { return rightOf(j) < heap.size(); }
-
-    protected void upHeap(int j) {
-        while (j > 0) {
-            int p = parentOf(j);
-            if (compareEntryKeys(heap.get(j), heap.get(p)) >= 0) break;
-            swap(j, p);
-            j = p;
+    /**
+     * A* search using landmark lower bounds as heuristic. The bounds are consistent,
+     * so like Dijkstra's algorithm every terminal is settled at most once and the
+     * search stops as soon as dest is settled.
+     *
+     * @param g         the snapshot to search
+     * @param src       the source terminal ID
+     * @param dest      the destination terminal ID
+     * @param landmarks landmark tables covering g
+     * @param space     the search space to fill in
+     * @param stats     counters to fill in
+     */
+    public static void landmarkAStar(CompactGraph g, int src, int dest, LandmarkIndex landmarks, SearchSpace space,
+                                     SearchStats stats) {
+        space.reset(g.size());
+        stats.reset();
+        var pq = space.heap;
+        space.reach(src, 0, -1, -1);
+        pq.insert(src, landmarks.lowerBound(src, dest));
+        stats.inserts++;
+        while (!pq.isEmpty()) {
+            int u = pq.removeMin();
+            space.settle(u);
+            stats.extracts++;
+            stats.settled++;
+            if (u == dest) {
+                break;
+            }
+            int du = space.distance[u];
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (space.isSettled(v) || !g.isOpen(slot)) {
+                    continue;
+                }
+                stats.relaxed++;
+                int dv = du + g.times[slot] + g.waiting[u];
+                if (!space.isReached(v)) {
+                    space.reach(v, dv, u, slot);
+                    pq.insert(v, dv + landmarks.lowerBound(v, dest));
+                    stats.inserts++;
+                } else if (dv < space.distance[v]) {
+                    space.reach(v, dv, u, slot);
+                    pq.decreaseKey(v, dv + landmarks.lowerBound(v, dest));
+                    stats.decreases++;
+                }
+            }
         }
     }
 
-    protected void downHeap(int j) {
-        while (hasLeft(j)) {
-            int leftIndex = leftOf(j);
-            int smallestChildIndex = leftIndex;
-            if (hasRight(j)) {
-                int rightIndex = rightOf(j);
-                if (compareEntryKeys(heap.get(leftIndex), heap.get(rightIndex)) > 0)
-                    smallestChildIndex = rightIndex;
+    /**
+     * Breadth first search, the distance of a terminal is the number of shuttles
+     * needed to reach it. Stops as soon as d is discovered since its level can
+     * no longer change.
+     *
+     * @param g     the snapshot to search
+     * @param s     the source terminal ID
+     * @param d     the destination terminal ID, or -1 to search the whole graph
+     * @param space the search space to fill in
+     * @param stats counters to fill in
+     */
+    public static void shortestPathBFS(CompactGraph g, int s, int d, SearchSpace space, SearchStats stats) {
+        space.reset(g.size());
+        stats.reset();
+        int[] level = space.queue;
+        int head = 0;
+        int tail = 0;
+        space.reach(s, 0, -1, -1);
+        level[tail++] = s;
+        stats.inserts++;
+        while (head < tail && (d < 0 || !space.isReached(d))) {
+            int u = level[head++];
+            stats.extracts++;
+            stats.settled++;
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (!g.isOpen(slot)) {
+                    continue;
+                }
+                stats.relaxed++;
+                if (!space.isReached(v)) {
+                    space.reach(v, space.distance[u] + 1, u, slot);
+                    level[tail++] = v;
+                    stats.inserts++;
+                }
             }
-            if (compareEntryKeys(heap.get(smallestChildIndex), heap.get(j)) >= 0)
-                break;
-            swap(j, smallestChildIndex);
-            j = smallestChildIndex;
         }
     }
 
-    public static class Entry<K,V> {
-        private K key;
-        private V value;
-        int index;
+    /**
+     * Bidirectional Dijkstra's algorithm. The forward search from src boards at
+     * the terminal it leaves, so the backward search from dest pays the waiting
+     * time of the terminal it reaches. Both sides grow the smaller heap and stop
+     * once the sum of their minimum keys cannot beat the best meeting found.
+     *
+     * The route ends up in forward, as if a forward search had found it.
+     *
+     * @param g        the snapshot to search
+     * @param src      the source terminal ID
+     * @param dest     the destination terminal ID
+     * @param forward  the search space rooted at src
+     * @param backward the search space rooted at dest
+     * @param stats    counters to fill in
+     */
+    public static void bidirectionalDijkstra(CompactGraph g, int src, int dest, SearchSpace forward,
+                                             SearchSpace backward, SearchStats stats) {
+        forward.reset(g.size());
+        backward.reset(g.size());
+        stats.reset();
+        forward.reach(src, 0, -1, -1);
+        forward.heap.insert(src, 0);
+        stats.inserts++;
+        backward.reach(dest, 0, -1, -1);
+        backward.heap.insert(dest, 0);
+        stats.inserts++;
+        long best = src == dest ? 0 : Long.MAX_VALUE;
+        int meet = src == dest ? src : -1;
 
-        public Entry(K key, V value, int index) {
-            this.key = key;
-            this.value = value;
-            this.index = index;
+        while (!forward.heap.isEmpty() && !backward.heap.isEmpty()) {
+            if ((long) forward.heap.minKey() + backward.heap.minKey() >= best) {
+                break;                                     // no shorter route left
+            }
+            boolean isForward = forward.heap.size() <= backward.heap.size();
+            SearchSpace space = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            int u = space.heap.removeMin();
+            space.settle(u);
+            stats.extracts++;
+            stats.settled++;
+            int du = space.distance[u];
+            for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                int v = g.targets[slot];
+                if (!g.isOpen(slot)) {
+                    continue;
+                }
+                if (!space.isSettled(v)) {
+                    stats.relaxed++;
+                    int dv = du + g.times[slot] + g.waiting[isForward ? u : v];
+                    if (!space.isReached(v)) {
+                        space.reach(v, dv, u, slot);
+                        space.heap.insert(v, dv);
+                        stats.inserts++;
+                    } else if (dv < space.distance[v]) {
+                        space.reach(v, dv, u, slot);
+                        space.heap.decreaseKey(v, dv);
+                        stats.decreases++;
+                    }
+                }
+                if (other.isReached(v) && (long) space.distance[v] + other.distance[v] < best) {
+                    best = (long) space.distance[v] + other.distance[v];
+                    meet = v;
+                }
+            }
         }
 
-        public K getKey() {
-            return key;
+        if (meet >= 0 && meet != src) {
+            join(forward, backward, meet, dest, best);
         }
-        public V getValue() {
-            return value;
+    }
+
+    /**
+     * Bidirectional breadth first search. Each round expands a whole level of the
+     * smaller frontier and stops at the end of the first level where the two
+     * searches touch. The route ends up in forward.
+     *
+     * @param g        the snapshot to search
+     * @param s        the source terminal ID
+     * @param d        the destination terminal ID
+     * @param forward  the search space rooted at s
+     * @param backward the search space rooted at d
+     * @param stats    counters to fill in
+     */
+    public static void bidirectionalBFS(CompactGraph g, int s, int d, SearchSpace forward,
+                                        SearchSpace backward, SearchStats stats) {
+        forward.reset(g.size());
+        backward.reset(g.size());
+        stats.reset();
+        if (s == d) {
+            forward.reach(s, 0, -1, -1);
+            return;
         }
+        forward.reach(s, 0, -1, -1);
+        forward.queue[0] = s;
+        backward.reach(d, 0, -1, -1);
+        backward.queue[0] = d;
+        stats.inserts += 2;
+        // frontiers are queue[head .. tail - 1] of each side
+        int forwardHead = 0;
+        int forwardTail = 1;
+        int backwardHead = 0;
+        int backwardTail = 1;
+        long best = Long.MAX_VALUE;
+        int meet = -1;
 
-        public void setKey(K key) {
-            this.key = key;
+        while (meet < 0 && forwardHead < forwardTail && backwardHead < backwardTail) {
+            boolean isForward = forwardTail - forwardHead <= backwardTail - backwardHead;
+            SearchSpace space = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            int head = isForward ? forwardHead : backwardHead;
+            int end = isForward ? forwardTail : backwardTail;
+            int tail = end;
+            for (; head < end; head++) {
+                int u = space.queue[head];
+                stats.extracts++;
+                stats.settled++;
+                for (int slot = g.offsets[u]; slot < g.offsets[u + 1]; slot++) {
+                    int v = g.targets[slot];
+                    if (!g.isOpen(slot)) {
+                        continue;
+                    }
+                    stats.relaxed++;
+                    if (!space.isReached(v)) {
+                        space.reach(v, space.distance[u] + 1, u, slot);
+                        space.queue[tail++] = v;
+                        stats.inserts++;
+                    }
+                    if (other.isReached(v) && (long) space.distance[v] + other.distance[v] < best) {
+                        best = (long) space.distance[v] + other.distance[v];
+                        meet = v;
+                    }
+                }
+            }
+            if (isForward) {
+                forwardHead = head;
+                forwardTail = tail;
+            } else {
+                backwardHead = head;
+                backwardTail = tail;
+            }
         }
 
-        public int getIndex() {
-            return index;
+        if (meet >= 0) {
+            join(forward, backward, meet, d, best);
         }
+    }
 
-        public void setIndex(int index) {
-            this.index = index;
+    /**
+     * Appends the backward half of a bidirectional route to the forward search
+     * tree, so the route can be read from forward's parent pointers alone.
+     *
+     * @param forward  the search space rooted at the source
+     * @param backward the search space rooted at dest
+     * @param meet     a terminal reached by both searches on a best route
+     * @param dest     the destination terminal ID
+     * @param best     the length of the route
+     */
+    private static void join(SearchSpace forward, SearchSpace backward, int meet, int dest, long best) {
+        // With zero cost shuttles the backward half may cross the forward half again;
+        // meeting at the last such crossing keeps the joined route free of cycles.
+        for (int v = meet; v != dest; ) {
+            v = backward.parent[v];
+            if (forward.isReached(v) && (long) forward.distance[v] + backward.distance[v] <= best) {
+                meet = v;
+            }
+        }
+        for (int v = meet; v != dest; ) {
+            int next = backward.parent[v];
+            forward.reach(next, (int) (best - backward.distance[next]), v, backward.via[v]);
+            v = next;
         }
     }
-}
 
-/**
- *  Utility class containing graph algorithms
- */
-class GraphUtilities {
+    /**
+     * Contraction hierarchy query: a Dijkstra search upwards from src and one
+     * upwards from dest towards it. The best route goes up from src and down to
+     * dest through the terminal where the two meet. The route is then unpacked
+     * into shuttles and left in the forward space of the workspace, as if a
+     * forward search had found it.
+     *
+     * @param ch   the hierarchy, customised for the snapshot being routed on
+     * @param src  the source terminal ID
+     * @param dest the destination terminal ID
+     * @param w    the workspace of the calling thread
+     */
+    public static void hierarchyQuery(ContractionHierarchy ch, int src, int dest, SearchWorkspace w) {
+        var forward = w.forward;
+        var backward = w.backward;
+        int n = ch.size();
+        forward.reset(n);
+        backward.reset(n);
+        w.stats.reset();
+        forward.reach(src, 0, -1, -1);
+        forward.heap.insert(src, 0);
+        w.stats.inserts++;
+        backward.reach(dest, 0, -1, -1);
+        backward.heap.insert(dest, 0);
+        w.stats.inserts++;
+        long best = Long.MAX_VALUE;
+        int meet = -1;
 
-    public static <V, E> Map<AdjacencyMap<V,E>.Vertex<V>, Integer>
-    fastestPathDijkstra(AdjacencyMap<V,E> g, AdjacencyMap<V,E>.Vertex<V> src,
-                        AdjacencyMap<V,E>.Vertex<V> dest,
-                        BiFunction<E, V, Integer> edgeConverter) {
-        Map<AdjacencyMap<V,E>.Vertex<V>, Integer> d = new HashMap<>();
-        Map<AdjacencyMap<V,E>.Vertex<V>, AdjacencyMap<V,E>.Vertex<V>> parent = new HashMap<>();
-        Map<AdjacencyMap<V, E>.Vertex<V>, Integer> cloud = new HashMap<>();
-        PriorityQueue<Integer, AdjacencyMap<V,E>.Vertex<V>> pq;
-        pq = new PriorityQueue<>();
-        Map<AdjacencyMap<V,E>.Vertex<V>,PriorityQueue.Entry<Integer,AdjacencyMap<V,E>.Vertex<V>>> pqTokens;
-        pqTokens = new HashMap<>();
-
-        /*
-         * For all vertices, give the src vertices a distance of 0
-         * all others get a distance of INFINITY (INT_MAX_VALUE);
-         *
-         * we use internal iteration of PositionalList
-         */
-        g.getVertices().forEach(v -> {
-            if (v == src) {
-                d.put(v, 0);
-                parent.put(v, null);
-            } else {
-                d.put(v, Integer.MAX_VALUE);
+        boolean isForward = false;
+        while (true) {
+            boolean forwardDone = forward.heap.isEmpty() || forward.heap.minKey() >= best;
+            boolean backwardDone = backward.heap.isEmpty() || backward.heap.minKey() >= best;
+            if (forwardDone && backwardDone) {
+                break;
             }
-            pqTokens.put(v, pq.insert(d.get(v), v));
-        });
-
-        /*
-         * We begin adding reachable vertices to the cloud
-         */
-        while (!pq.isEmpty()) {
-            PriorityQueue.Entry<Integer, AdjacencyMap<V,E>.Vertex<V>> entry = pq.removeMin();
-            int key = entry.getKey();
-            AdjacencyMap<V,E>.Vertex<V> u = entry.getValue();
-            cloud.put(u, key);                             // the  distance to u vertex (actual)
-            pqTokens.remove(u);                            // u is removed from the priorty queue
-            for (AdjacencyMap<V,E>.Edge<E> e : g.outgoingEdges(u)) {
-                AdjacencyMap<V,E>.Vertex<V> v = g.opposite(u,e);
-                if (cloud.get(v) == null) {
-                    // do relaxation on edge (u,v)
-                    int weight = edgeConverter.apply(e.getElement(), u.getElement());
-                    if (d.get(u) + weight < d.get(v)) {              // is it a better path to v
-                        d.put(v, d.get(u) + weight);                   // then update the distance
-                        pq.replaceKey(pqTokens.get(v), d.get(v));   // update the pq entry
-                        parent.put(v, u);
-                    }
+            isForward = backwardDone || (!forwardDone && !isForward); // take turns
+            SearchSpace space = isForward ? forward : backward;
+            SearchSpace other = isForward ? backward : forward;
+            int u = space.heap.removeMin();
+            space.settle(u);
+            w.stats.extracts++;
+            w.stats.settled++;
+            int du = space.distance[u];
+            if (other.isReached(u) && (long) du + other.distance[u] < best) {
+                best = (long) du + other.distance[u];
+                meet = u;
+            }
+            int[] weights = isForward ? ch.upWeight : ch.downWeight;
+            for (int k = ch.upOffsets[u]; k < ch.upOffsets[u + 1]; k++) {
+                int v = ch.upTargets[k];
+                if (weights[k] == ContractionHierarchy.INFINITY || space.isSettled(v)) {
+                    continue;
+                }
+                w.stats.relaxed++;
+                int dv = du + weights[k];
+                if (!space.isReached(v)) {
+                    space.reach(v, dv, u, k);
+                    space.heap.insert(v, dv);
+                    w.stats.inserts++;
+                } else if (dv < space.distance[v]) {
+                    space.reach(v, dv, u, k);
+                    space.heap.decreaseKey(v, dv);
+                    w.stats.decreases++;
                 }
             }
         }
 
-        Map<AdjacencyMap<V, E>.Vertex<V>, Integer> result = new HashMap<>();
-        result.put(src, cloud.get(src));
-        var currentVertex = dest;
-        while(parent.get(currentVertex) != null) {
-            result.put(currentVertex, cloud.get(currentVertex));
-            currentVertex = parent.get(currentVertex);
+        // terminals of the hierarchy route, in the order travelled
+        var route = w.route;
+        route.clear();
+        if (meet >= 0) {
+            for (int v = meet; v != -1; v = forward.parent[v]) {
+                route.push(v);
+            }
+            for (int i = 0, j = route.size() - 1; i < j; i++, j--) {
+                int swap = route.get(i);
+                route.set(i, route.get(j));
+                route.set(j, swap);
+            }
+            for (int v = meet; v != dest; ) {
+                v = backward.parent[v];
+                route.push(v);
+            }
         }
 
-        return result;
-    }
-
-
-
-    public static <V,E>  Map<AdjacencyMap<V,E>.Vertex<V>, Integer> shortestPathBFS(AdjacencyMap<V,E> g,
-                                                                                   AdjacencyMap<V,E>.Vertex<V> s,
-                                                                                   AdjacencyMap<V,E>.Vertex<V> d,
-                                                                                   Function<E, Integer> edgeConverter) {
-        Set<AdjacencyMap<V,E>.Vertex<V>> known = new HashSet<>();
-        PositionalLinkedList<AdjacencyMap<V,E>.Vertex<V>> level = new PositionalLinkedList<>();
-        known.add(s);
-        Map<AdjacencyMap<V,E>.Vertex<V>, Integer> dis = new HashMap<>();
-        g.getVertices().forEach(v -> {
-            dis.put(v, 0);
-        });
-        Map<AdjacencyMap<V,E>.Vertex<V>, AdjacencyMap<V,E>.Vertex<V>> parent = new HashMap<>();
-        parent.put(s, null);
-        level.addLast(s);
-        while (!level.isEmpty()) {
-            PositionalLinkedList<AdjacencyMap<V,E>.Vertex<V>> nextLevel = new PositionalLinkedList<>();
-            level.forEach(u -> {
-                        for (AdjacencyMap<V,E>.Edge<E> e : g.outgoingEdges(u)) {
-                            AdjacencyMap<V, E>.Vertex<V> v = g.opposite(u, e);
-                            if (!known.contains(v)) {
-                                parent.put(v, u);
-                                int weight = edgeConverter.apply(e.getElement());
-                                dis.put(v, dis.get(u) + weight);
-                                known.add(v);
-                                nextLevel.addLast(v);
-                            }
-                        }
-            });
-            level = nextLevel;
+        var unpacked = w.unpacked;
+        unpacked.clear();
+        for (int i = 0; i + 1 < route.size(); i++) {
+            ch.unpack(route.get(i), route.get(i + 1), unpacked, w.pending);
         }
 
-        Map<AdjacencyMap<V, E>.Vertex<V>, Integer> result = new HashMap<>();
-        result.put(s, dis.get(s));
-        var currentVertex = d;
-        while(parent.get(currentVertex) != null) {
-            result.put(currentVertex, dis.get(currentVertex));
-            currentVertex = parent.get(currentVertex);
+        // rewrite the route into forward as a chain of shuttles; with zero cost
+        // shuttles it can visit a terminal twice, backward marks where each one is
+        forward.reset(n);
+        backward.reset(n);
+        forward.reach(src, 0, -1, -1);
+        if (meet < 0) {
+            return;
+        }
+        route.clear();
+        route.push(src);
+        route.push(-1);
+        backward.reach(src, 0, -1, -1);
+        for (int i = 0; i < unpacked.size(); i += 2) {
+            int slot = unpacked.get(i);
+            int v = unpacked.get(i + 1);
+            if (backward.isReached(v) && backward.distance[v] >= 0) {
+                for (int j = backward.distance[v] + 2; j < route.size(); j += 2) {
+                    backward.distance[route.get(j)] = -1;
+                }
+                route.truncate(backward.distance[v] + 2);
+            } else {
+                backward.reach(v, route.size(), -1, -1);
+                route.push(v);
+                route.push(slot);
+            }
+        }
+        for (int i = 2; i < route.size(); i += 2) {
+            forward.reach(route.get(i), i / 2, route.get(i - 2), route.get(i + 1));
         }
-
-        return result; // the vertices containing the shortest path
     }
-
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,339 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Benchmarks the routing and graph operations of Airport on synthetic
+ * topologies. The project has no build, so this is a plain program rather than
+ * a JMH module; it does what the JMH harness would for these benchmarks: warms
+ * up every benchmark before measuring it, feeds results into a sink so they
+ * cannot be optimised away, and reports the bytes allocated and the garbage
+ * collections per operation alongside the time, as the GC profiler does.
+ *
+ * Usage: java AirportBenchmark [topology|all] [terminals] [routing] [seconds]
+ * e.g. java -Xmx8g AirportBenchmark GRID 1000000 DIAL 5
+ *
+ * Defaults: all topologies, 10000 terminals, DIJKSTRA routing and 2 seconds
+ * of measurement per benchmark after 1 second of warm up.
+ */
+public class AirportBenchmark {
+    private static final int PAIRS = 4096;
+    private static final int BURST_CAPACITY = 16;
+
+    private static long sink; // results are folded in here so no call is dead code
+
+    /**
+     * The synthetic topologies. Waiting times are 0 to 9 minutes and shuttle
+     * times 1 to 30 minutes throughout.
+     */
+    enum Topology {
+        /* A core of fully connected hubs, every other terminal joined to one or two of them */
+        HUB_AND_SPOKE {
+            @Override
+            void connect(Airport airport, List<AirportBase.TerminalBase> terminals, Random random) {
+                int hubs = Math.max(2, (int) Math.sqrt(terminals.size()) / 4);
+                for (int a = 0; a < hubs; a++) {
+                    for (int b = a + 1; b < hubs; b++) {
+                        shuttle(airport, terminals, a, b, random);
+                    }
+                }
+                for (int spoke = hubs; spoke < terminals.size(); spoke++) {
+                    shuttle(airport, terminals, spoke, random.nextInt(hubs), random);
+                    if (random.nextInt(4) == 0) {
+                        shuttle(airport, terminals, spoke, random.nextInt(hubs), random);
+                    }
+                }
+            }
+        },
+        /* Concourses: chains of about 100 gates leaving a ring of central terminals */
+        CHAIN {
+            @Override
+            void connect(Airport airport, List<AirportBase.TerminalBase> terminals, Random random) {
+                int n = terminals.size();
+                int ring = Math.max(3, n / 100);
+                for (int a = 0; a < ring; a++) {
+                    shuttle(airport, terminals, a, (a + 1) % ring, random);
+                }
+                for (int gate = ring; gate < n; gate++) {
+                    int previous = (gate - ring) % 100 == 0 ? (gate - ring) / 100 % ring : gate - 1;
+                    shuttle(airport, terminals, gate, previous, random);
+                }
+            }
+        },
+        /* A square grid, each terminal joined to its right and lower neighbours */
+        GRID {
+            @Override
+            void connect(Airport airport, List<AirportBase.TerminalBase> terminals, Random random) {
+                int n = terminals.size();
+                int side = Math.max(1, (int) Math.ceil(Math.sqrt(n)));
+                for (int u = 0; u < n; u++) {
+                    if ((u + 1) % side != 0 && u + 1 < n) {
+                        shuttle(airport, terminals, u, u + 1, random);
+                    }
+                    if (u + side < n) {
+                        shuttle(airport, terminals, u, u + side, random);
+                    }
+                }
+            }
+        },
+        /* Preferential attachment (Barabasi-Albert): each new terminal joins two
+           existing ones, picked in proportion to their number of shuttles */
+        SCALE_FREE {
+            @Override
+            void connect(Airport airport, List<AirportBase.TerminalBase> terminals, Random random) {
+                int n = terminals.size();
+                int[] ends = new int[4 * n]; // both ends of every shuttle so far
+                int size = 0;
+                if (n > 1) {
+                    shuttle(airport, terminals, 0, 1, random);
+                    ends[size++] = 0;
+                    ends[size++] = 1;
+                }
+                for (int u = 2; u < n; u++) {
+                    int joined = size;
+                    for (int k = 0; k < 2; k++) {
+                        int v = ends[random.nextInt(joined)];
+                        if (airport.insertShuttle(terminals.get(u), terminals.get(v), 1 + random.nextInt(30)) != null) {
+                            ends[size++] = u;
+                            ends[size++] = v;
+                        }
+                    }
+                }
+            }
+        };
+
+        abstract void connect(Airport airport, List<AirportBase.TerminalBase> terminals, Random random);
+
+        Fixture build(int n, int capacity, long seed) {
+            var random = new Random(seed);
+            var airport = new Airport(capacity, n, 2 * n);
+            List<AirportBase.TerminalBase> terminals = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                terminals.add(airport.insertTerminal(new Airport.Terminal("T" + i, random.nextInt(10))));
+            }
+            connect(airport, terminals, random);
+            return new Fixture(airport, terminals, random);
+        }
+
+        private static void shuttle(Airport airport, List<AirportBase.TerminalBase> terminals, int u, int v,
+                                    Random random) {
+            airport.insertShuttle(terminals.get(u), terminals.get(v), 1 + random.nextInt(30));
+        }
+    }
+
+    /**
+     * A generated airport with its terminals and precomputed query pairs
+     */
+    static class Fixture {
+        final Airport airport;
+        final List<AirportBase.TerminalBase> terminals;
+        final AirportBase.TerminalBase[] origins = new AirportBase.TerminalBase[PAIRS];
+        final AirportBase.TerminalBase[] destinations = new AirportBase.TerminalBase[PAIRS];
+        final Random random;
+        final int size;
+        int next; // the next query pair of a route burst, or the shuttles inserted so far
+
+        Fixture(Airport airport, List<AirportBase.TerminalBase> terminals, Random random) {
+            this.airport = airport;
+            this.terminals = terminals;
+            this.random = random;
+            this.size = terminals.size();
+            for (int i = 0; i < PAIRS; i++) {
+                origins[i] = terminals.get(random.nextInt(terminals.size()));
+                do {
+                    // a path from a terminal to itself takes no shuttle, and never fills up
+                    destinations[i] = terminals.get(random.nextInt(terminals.size()));
+                } while (destinations[i] == origins[i] && terminals.size() > 1);
+            }
+        }
+    }
+
+    /**
+     * One benchmark: setUp builds the state an iteration runs on, outside the
+     * measurement, and run performs up to the given number of operations on it
+     * and returns how many it did.
+     */
+    interface Benchmark {
+        Object setUp(Topology topology, int n, Airport.Routing routing);
+
+        int run(Object state, int operations);
+    }
+
+    static final Map<String, Benchmark> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("findShortestPath", queries(false));
+        BENCHMARKS.put("findFastestPath", queries(true));
+        BENCHMARKS.put("insertShuttle", new Benchmark() {
+            @Override
+            public Object setUp(Topology topology, int n, Airport.Routing routing) {
+                return fixture(topology, n, Integer.MAX_VALUE, routing);
+            }
+
+            @Override
+            public int run(Object state, int operations) {
+                // up to as many new shuttles as there are terminals, so the graph keeps its density
+                var fixture = (Fixture) state;
+                var terminals = fixture.terminals;
+                int done = 0;
+                for (; done < operations && fixture.next < fixture.size; done++, fixture.next++) {
+                    var shuttle = fixture.airport.insertShuttle(terminals.get(fixture.random.nextInt(terminals.size())),
+                            terminals.get(fixture.random.nextInt(terminals.size())), 10);
+                    sink += shuttle == null ? 0 : 1;
+                }
+                return done;
+            }
+        });
+        BENCHMARKS.put("removeTerminal", new Benchmark() {
+            @Override
+            public Object setUp(Topology topology, int n, Airport.Routing routing) {
+                var fixture = fixture(topology, n, Integer.MAX_VALUE, routing);
+                Collections.shuffle(fixture.terminals, fixture.random);
+                return fixture;
+            }
+
+            @Override
+            public int run(Object state, int operations) {
+                var fixture = (Fixture) state;
+                int done = 0;
+                // stop at half the terminals, later removals would run on an emptying graph
+                while (done < operations && fixture.terminals.size() > fixture.size / 2) {
+                    var terminal = fixture.terminals.remove(fixture.terminals.size() - 1);
+                    sink += fixture.airport.removeTerminal(terminal) ? 1 : 0;
+                    done++;
+                }
+                return done;
+            }
+        });
+        BENCHMARKS.put("routeBurst", new Benchmark() {
+            @Override
+            public Object setUp(Topology topology, int n, Airport.Routing routing) {
+                return fixture(topology, n, BURST_CAPACITY, routing);
+            }
+
+            @Override
+            public int run(Object state, int operations) {
+                // each pair until it cannot be booked any more: shuttles fill up, are retired
+                // and the routes go around them
+                var fixture = (Fixture) state;
+                int done = 0;
+                while (done < operations && fixture.next < PAIRS) {
+                    var path = fixture.airport.findFastestPath(fixture.origins[fixture.next],
+                            fixture.destinations[fixture.next]);
+                    if (path == null) {
+                        fixture.next++;
+                    } else {
+                        sink += path.time;
+                    }
+                    done++;
+                }
+                return done;
+            }
+        });
+    }
+
+    private static Benchmark queries(boolean fastest) {
+        return new Benchmark() {
+            @Override
+            public Object setUp(Topology topology, int n, Airport.Routing routing) {
+                return fixture(topology, n, Integer.MAX_VALUE, routing);
+            }
+
+            @Override
+            public int run(Object state, int operations) {
+                var fixture = (Fixture) state;
+                var airport = fixture.airport;
+                for (int i = 0; i < operations; i++) {
+                    var origin = fixture.origins[i % PAIRS];
+                    var destination = fixture.destinations[i % PAIRS];
+                    var path = fastest ? airport.findFastestPath(origin, destination)
+                            : airport.findShortestPath(origin, destination);
+                    sink += path == null ? 0 : path.time;
+                }
+                return operations;
+            }
+        };
+    }
+
+    private static Fixture fixture(Topology topology, int n, int capacity, Airport.Routing routing) {
+        var fixture = topology.build(n, capacity, 42);
+        fixture.airport.setRouting(routing);
+        // builds the routing snapshot and whatever index the routing needs outside the measurement
+        fixture.airport.findFastestPath(fixture.origins[0], fixture.destinations[0]);
+        fixture.airport.findShortestPath(fixture.origins[0], fixture.destinations[0]);
+        return fixture;
+    }
+
+    public static void main(String[] args) {
+        var topologies = args.length > 0 && !args[0].equalsIgnoreCase("all")
+                ? List.of(Topology.valueOf(args[0].toUpperCase())) : List.of(Topology.values());
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        var routing = args.length > 2 ? Airport.Routing.valueOf(args[2].toUpperCase()) : Airport.Routing.DIJKSTRA;
+        long measureNanos = (long) ((args.length > 3 ? Double.parseDouble(args[3]) : 2) * 1e9);
+
+        System.out.printf("%d terminals, %s routing%n", n, routing);
+        System.out.printf("%-14s %-17s %12s %14s %12s %10s%n",
+                "topology", "benchmark", "ops", "ns/op", "bytes/op", "gc ms");
+        for (var topology : topologies) {
+            for (var entry : BENCHMARKS.entrySet()) {
+                measure(topology, entry.getKey(), entry.getValue(), n, routing, measureNanos);
+            }
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Runs one benchmark for a second of warm up and then for the measurement
+     * time. Only the run calls are timed, and only the bytes they allocate and
+     * the collections during them are counted.
+     */
+    private static void measure(Topology topology, String name, Benchmark benchmark, int n,
+                                Airport.Routing routing, long measureNanos) {
+        run(topology, benchmark, n, routing, 1_000_000_000L);
+        long[] totals = run(topology, benchmark, n, routing, measureNanos);
+        long operations = totals[0];
+        System.out.printf("%-14s %-17s %12d %14.1f %12.1f %10d%n", topology, name, operations,
+                operations == 0 ? Double.NaN : (double) totals[1] / operations,
+                operations == 0 ? Double.NaN : (double) totals[2] / operations, totals[3]);
+    }
+
+    /**
+     * Runs iterations of growing size until the time is up, setting the state
+     * up again whenever an iteration used it up
+     *
+     * @return the operations, nanoseconds, bytes allocated and GC milliseconds
+     */
+    private static long[] run(Topology topology, Benchmark benchmark, int n, Airport.Routing routing,
+                              long nanos) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long[] totals = new long[4];
+        int operations = 16;
+        Object state = benchmark.setUp(topology, n, routing);
+        while (totals[1] < nanos) {
+            long gc = gcMillis();
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            int done = benchmark.run(state, operations);
+            long elapsed = System.nanoTime() - start;
+            totals[2] += threads.getThreadAllocatedBytes(thread) - bytes;
+            totals[3] += gcMillis() - gc;
+            totals[0] += done;
+            totals[1] += elapsed;
+            if (done < operations) {
+                state = benchmark.setUp(topology, n, routing); // used up, e.g. half the terminals removed
+            } else if (elapsed < 100_000_000L) {
+                operations = Math.min(operations * 2, 1 << 20);
+            }
+        }
+        return totals;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}